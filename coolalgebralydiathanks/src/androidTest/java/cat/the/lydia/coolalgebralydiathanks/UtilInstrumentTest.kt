@@ -101,6 +101,37 @@ class UtilInstrumentTest {
     }
 
 
+    @Test
+    fun applyCubeToRgb() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        val useCustomScript = RsFriend.use_custom_script
+        try {
+            for (custom in listOf(true, false)) {
+                RsFriend.use_custom_script = custom
+                RsFriend.init(context)
+                val cube = randomWellBehavedCube()
+                val colors = Util.randomColors(1000)
+                val src = Util.colorsToFloatArray(colors)
+
+                // both RS entry points pack colors the same way
+                val rgb = FloatArray(src.size)
+                RsFriend.applyColorCubeToRgb(cube, src, rgb, 0, colors.size)
+                val list = Util.colorsToFloatArray(RsFriend.applyColorCubeToColors(cube, colors))
+                assertArrayEquals(list, rgb, 0f)
+
+                // lut3d.rs works on floats, so it agrees with the CPU backend up to RS precision
+                if (custom) {
+                    val cpu = FloatArray(src.size)
+                    KotlinCpuTrilinear.applyCubeToRgb(cube, src, cpu)
+                    assertArrayEquals(cpu, rgb, 1e-3f)
+                }
+            }
+        } finally {
+            RsFriend.use_custom_script = useCustomScript
+            RsFriend.init(context)
+        }
+    }
+
     @Test
     @Ignore("$TAG: timing-only tests disabled")
     fun applyCubeToColors_timing() {
@@ -3,16 +3,22 @@ package cat.the.lydia.coolalgebralydiathanks
 import androidx.annotation.IntRange
 import cat.the.lydia.coolalgebralydiathanks.utils.Util
 import kotlin.math.abs
-import kotlin.random.Random
+import kotlin.math.roundToInt
 
 /**
  * Just what it says. It's an immutable float value between 0 and 1.
+ *
+ * This is an inline class, so at runtime a Bounded is just a float, and Colors and our kernels
+ * don't allocate anything per channel. The catch is that an inline class can't validate in its
+ * constructor or override equals and hashCode:
+ *
+ * - Bounded(value) does not check the range. Use [checked] wherever values come from outside the
+ *   library, and keep the raw constructor for hot kernels whose results are in range by
+ *   construction.
+ * - `==` and hashCode() compare the exact float value. The epsilon comparison we use for the
+ *   algebra lives in [approxEquals], and [quantize] gives a hash key that near-equal values share.
  */
-class Bounded(val value: Float) {
-
-    init {
-        require(value in 0f..1f) { "expected value in [0,1] got value=$value" }
-    }
+inline class Bounded(val value: Float) {
 
     constructor(color: Int, channel: Channel) : this(when (channel) {
         Channel.R -> (color shr 16 and 0xff) / 255f
@@ -20,30 +26,42 @@ class Bounded(val value: Float) {
         Channel.B -> (color and 0xff) / 255f
     })
 
+    /**
+     * True if the value is actually in [0,1].
+     */
+    val isValid: Boolean
+        get() = value in 0f..1f
+
     /**
      * We end up needing to use an epsilon comparison here. The EPS is very small so we can fudge a
      * bit and still assume that this is an equivalence relation without anything breaking. The
      * purpose is to make our identity lattice Colors precisely representable in 8-bit (modulo fp
      * precision).
      */
-    override fun equals(other: Any?): Boolean = when {
-        this === other -> true
-        other !is Bounded -> false
-        value == other.value -> true
-        else -> abs(value - other.value) < BOUNDED_EPS
-    }
+    infix fun approxEquals(other: Bounded): Boolean =
+            value == other.value || abs(value - other.value) < BOUNDED_EPS
 
     /**
-     * This means we can't use hashcode tho.
+     * The value rounded to a multiple of BOUNDED_EPS, as an Int in 0..BOUNDED_QUANT_MAX. Equal
+     * values always quantize the same, so this is safe to hash on.
      */
-    override fun hashCode() = throw NotImplementedError()
+    fun quantize(): Int = (value * BOUNDED_QUANT_MAX).roundToInt()
 
     override fun toString() = "Bounded($value)"
 
     companion object {
         val one = Bounded(1f)
         val zero = Bounded(0f)
-        private const val BOUNDED_EPS = 0.0001f
+        internal const val BOUNDED_EPS = 0.0001f
+        internal const val BOUNDED_QUANT_MAX = 10000f
+
+        /**
+         * Checked mode. Throws if the value is not in [0,1].
+         */
+        fun checked(value: Float): Bounded {
+            require(value in 0f..1f) { "expected value in [0,1] got value=$value" }
+            return Bounded(value)
+        }
     }
 }
 
@@ -0,0 +1,182 @@
+package cat.the.lydia.coolalgebralydiathanks
+
+import androidx.annotation.ColorInt
+import cat.the.lydia.coolalgebralydiathanks.utils.N_CHANNELS_RGB
+import cat.the.lydia.coolalgebralydiathanks.utils.Util
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.FloatBuffer
+import java.nio.IntBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * ColorData backed by a ByteBuffer, for images too big for the heap. The buffer can be direct, or
+ * a MappedByteBuffer over a raw pixel file, so the pixels live off-heap and only the chunks being
+ * worked on are ever copied into arrays.
+ *
+ * The whole buffer from 0 to its capacity is pixels, in the given format and the buffer's byte
+ * order. Unlike the other ColorData this one can be written to with copyRgbFrom(), so it can be
+ * the destination of a ColorCube too.
+ *
+ * A single mapping is limited to 2GB, which is about 178MP as RGB_F32, or 536MP as ARGB_8888.
+ */
+class BufferColorData(val buffer: ByteBuffer, val format: PixelFormat) : ColorData {
+
+    enum class PixelFormat(val bytesPerPixel: Int) {
+        /**
+         * Interleaved RGB floats, like RgbFloatData.
+         */
+        RGB_F32(N_CHANNELS_RGB * 4),
+
+        /**
+         * Packed ColorInts, like ColorIntData.
+         */
+        ARGB_8888(4)
+    }
+
+    init {
+        require(buffer.capacity() > 0) { "oops no colors!" }
+        require(buffer.capacity() % format.bytesPerPixel == 0) {
+            "expected $format pixels got ${buffer.capacity()} bytes"
+        }
+    }
+
+    override val size: Int = buffer.capacity() / format.bytesPerPixel
+
+    override val colors: List<Color> = object : AbstractList<Color>(), RandomAccess {
+        override val size: Int
+            get() = this@BufferColorData.size
+
+        override fun get(index: Int): Color {
+            if (index !in 0 until size) throw IndexOutOfBoundsException("index=$index size=$size")
+            return when (format) {
+                PixelFormat.RGB_F32 -> {
+                    val n = index * format.bytesPerPixel
+                    Color(
+                            Bounded(buffer.getFloat(n)),
+                            Bounded(buffer.getFloat(n + 4)),
+                            Bounded(buffer.getFloat(n + 8))
+                    )
+                }
+                PixelFormat.ARGB_8888 -> Util.colorIntToColor(buffer.getInt(index * 4))
+            }
+        }
+    }
+
+    override fun copyRgbInto(dst: FloatArray, dstOffset: Int, start: Int, count: Int) {
+        require(dstOffset + count * N_CHANNELS_RGB <= dst.size)
+        when (format) {
+            PixelFormat.RGB_F32 -> floats(start).get(dst, dstOffset, count * N_CHANNELS_RGB)
+            PixelFormat.ARGB_8888 -> {
+                val ints = ints(start)
+                var n = dstOffset
+                repeat(count) {
+                    val c = ints.get()
+                    dst[n] = Util.u8ToNormal(Util.red(c))
+                    dst[n + 1] = Util.u8ToNormal(Util.green(c))
+                    dst[n + 2] = Util.u8ToNormal(Util.blue(c))
+                    n += N_CHANNELS_RGB
+                }
+            }
+        }
+    }
+
+    override fun copyColorIntsInto(
+            @ColorInt dst: IntArray,
+            dstOffset: Int,
+            start: Int,
+            count: Int
+    ) {
+        require(dstOffset + count <= dst.size)
+        when (format) {
+            PixelFormat.ARGB_8888 -> ints(start).get(dst, dstOffset, count)
+            PixelFormat.RGB_F32 -> {
+                val floats = floats(start)
+                for (i in dstOffset until dstOffset + count) {
+                    dst[i] = Util.rgb(
+                            Util.normalToU8(floats.get()),
+                            Util.normalToU8(floats.get()),
+                            Util.normalToU8(floats.get())
+                    )
+                }
+            }
+        }
+    }
+
+    /**
+     * Write [count] colors from interleaved RGB floats in [src], starting at [srcOffset], to the
+     * pixels starting at [start]. ARGB_8888 pixels are rounded to U8.
+     */
+    fun copyRgbFrom(
+            src: FloatArray,
+            srcOffset: Int = 0,
+            start: Int = 0,
+            count: Int = (src.size - srcOffset) / N_CHANNELS_RGB
+    ) {
+        require(start + count <= size)
+        when (format) {
+            PixelFormat.RGB_F32 -> floats(start).put(src, srcOffset, count * N_CHANNELS_RGB)
+            PixelFormat.ARGB_8888 -> {
+                val ints = ints(start)
+                var n = srcOffset
+                repeat(count) {
+                    ints.put(Util.rgb(
+                            Util.normalToU8(src[n]),
+                            Util.normalToU8(src[n + 1]),
+                            Util.normalToU8(src[n + 2])
+                    ))
+                    n += N_CHANNELS_RGB
+                }
+            }
+        }
+    }
+
+    /**
+     * Views get their own position, so any number of threads can read and write different ranges
+     * of the same buffer. Note duplicate() forgets the byte order.
+     */
+    private fun view(start: Int): ByteBuffer = buffer.duplicate().order(buffer.order()).apply {
+        position(start * format.bytesPerPixel)
+    }
+
+    private fun floats(start: Int): FloatBuffer = view(start).asFloatBuffer()
+
+    private fun ints(start: Int): IntBuffer = view(start).asIntBuffer()
+
+    override fun toString(): String = "BufferColorData(size=$size, format=$format)"
+
+    companion object {
+        /**
+         * Off-heap pixels in native byte order.
+         */
+        fun allocateDirect(size: Int, format: PixelFormat): BufferColorData {
+            val bytes = ByteBuffer.allocateDirect(size * format.bytesPerPixel)
+            return BufferColorData(bytes.order(ByteOrder.nativeOrder()), format)
+        }
+
+        /**
+         * Map a raw pixel file with no header. If [size] is given the file is created or resized to
+         * fit, and mapped read-write so it can be a destination. Otherwise the whole existing file
+         * is mapped read-only.
+         */
+        fun map(
+                file: File,
+                format: PixelFormat,
+                size: Int? = null,
+                order: ByteOrder = ByteOrder.nativeOrder()
+        ): BufferColorData {
+            val readOnly = size == null
+            return RandomAccessFile(file, if (readOnly) "r" else "rw").use { raf ->
+                val bytes = size?.toLong()?.times(format.bytesPerPixel) ?: raf.length()
+                if (!readOnly) raf.setLength(bytes)
+                val mode =
+                        if (readOnly) FileChannel.MapMode.READ_ONLY
+                        else FileChannel.MapMode.READ_WRITE
+                // the mapping stays valid after the file is closed
+                BufferColorData(raf.channel.map(mode, 0, bytes).order(order), format)
+            }
+        }
+    }
+}
@@ -7,7 +7,28 @@ data class Color(
         val r: Bounded,
         val g: Bounded,
         val b: Bounded
-)
+) {
+    /**
+     * Colors are equal when their quantized channels are equal, like ColorCube and Photo. That's a
+     * real equivalence relation that agrees with hashCode(), so Colors work as hash keys. Use
+     * approxEquals() to compare with the Bounded epsilon instead.
+     */
+    override fun equals(other: Any?): Boolean = when {
+        this === other -> true
+        other !is Color -> false
+        else -> r.quantize() == other.r.quantize() &&
+                g.quantize() == other.g.quantize() &&
+                b.quantize() == other.b.quantize()
+    }
+
+    override fun hashCode(): Int = (r.quantize() * 31 + g.quantize()) * 31 + b.quantize()
+
+    /**
+     * Compare with the same epsilon as Bounded.approxEquals, channel by channel.
+     */
+    infix fun approxEquals(other: Color): Boolean =
+            r approxEquals other.r && g approxEquals other.g && b approxEquals other.b
+}
 
 /**
  * Convert Color to ColorInt.
@@ -1,47 +1,342 @@
 package cat.the.lydia.coolalgebralydiathanks
 
+import androidx.annotation.ColorInt
+import cat.the.lydia.coolalgebralydiathanks.implementation.BackendRegistry
+import cat.the.lydia.coolalgebralydiathanks.implementation.KotlinCpuTetrahedral
 import cat.the.lydia.coolalgebralydiathanks.implementation.KotlinCpuTrilinear
-import cat.the.lydia.coolalgebralydiathanks.rs.RsFriend
+import cat.the.lydia.coolalgebralydiathanks.utils.Fingerprint
 import cat.the.lydia.coolalgebralydiathanks.utils.N_CHANNELS_RGB
 import cat.the.lydia.coolalgebralydiathanks.utils.Util
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import kotlin.math.abs
 
-internal const val DO_RENDERSCRIPT_3DLUT = true
-internal const val DO_PARALLEL_3DLUT = true
+internal const val DO_STRUCTURED_3DLUT = true
+internal const val DO_CELL_MAJOR_3DLUT = true
+internal const val DO_CACHE_COMPOSITION = true
 
-internal fun useRenderScript3dLut() = DO_RENDERSCRIPT_3DLUT && RsFriend.initialized
-internal fun useParallelCpu3dLut() = DO_PARALLEL_3DLUT
-
-open class ColorCube(
-        override val colors: List<Color>
+/**
+ * A 3D lattice of Colors that we can interpolate into as a ColorFunc.
+ *
+ * The lattice is stored as one contiguous FloatArray of interleaved RGB values in
+ * x + y * n + z * n * n order, which is exactly the layout our RS allocations and CPU kernels want.
+ * The values are never modified after construction.
+ *
+ * The lattice can be any size from MIN_N^3 to MAX_N^3. N is just the default size we use for
+ * realtime rendering. Cubes of different sizes compose and apply just fine, and resample() converts
+ * between sizes.
+ */
+open class ColorCube internal constructor(
+        internal val values: FloatArray,
+        /**
+         * Lattice points per side.
+         */
+        val n: Int
 ) : ColorFunc, ColorData {
 
+    constructor(colors: List<Color>) :
+            this(Util.colorsToFloatArray(colors), latticeDimension(colors.size))
+
+    init {
+        require(n in MIN_N..MAX_N) { "expected n in $MIN_N..$MAX_N got n=$n" }
+        require(values.size == n * n * n * N_CHANNELS_RGB) {
+            "expected ${n * n * n * N_CHANNELS_RGB} values for n=$n got ${values.size}"
+        }
+    }
+
+    /**
+     * Quantized 64-bit content fingerprint, computed once up front. Cubes with different
+     * fingerprints are never quantizedEquals(), so it's cheap in the common case, and the
+     * fingerprint can be used to key hash maps by content.
+     */
+    val fingerprint: Long = Fingerprint.of(values)
+
+    /**
+     * Whether this cube is really per-channel curves or a color matrix, worked out on first use.
+     */
+    val structure: CubeStructure by lazy { CubeStructure.of(this) }
+
+    /**
+     * The lattice again in cell-major order, while [cellMajor] is on.
+     */
+    @Volatile
+    internal var cellValues: FloatArray? = null
+        private set
+
+    /**
+     * Whether to keep a cell-major copy of the lattice for the CPU kernels to read. Each cell has
+     * its 8 corners next to each other, so a lookup touches one or two cache lines instead of 4
+     * rows spread over 2 planes of the lattice, and the results are identical.
+     *
+     * Off by default. The copy is 8x the memory of the lattice and the win is small, a few
+     * percent for scattered colors through a 17^3 cube, and a loss from 33^3 up, where the copy
+     * falls out of cache. Turn it on for a small cube that's about to be applied to a lot of
+     * scattered colors, and off again to free the copy.
+     */
+    var cellMajor: Boolean
+        get() = cellValues != null
+        set(value) {
+            cellValues = if (value) cellValues ?: KotlinCpuTrilinear.toCellMajor(this) else null
+        }
+
+    /**
+     * The simpler structure to apply instead of the 3D lookup, if we have one.
+     */
+    private fun simpleStructure(): CubeStructure.Direct? =
+            if (DO_STRUCTURED_3DLUT) structure as? CubeStructure.Direct
+            else null
+
+    /**
+     * Read-only view of the lattice for compatibility. Colors are created on access, so anything
+     * hot should go through the backing values instead.
+     */
+    final override val colors: List<Color> = RgbFloatColorList(values)
+
+    final override val size: Int
+        get() = n * n * n
+
+    /**
+     * Resample this cube to an n^3 lattice, by sampling it at the lattice points of the new size in
+     * parallel.
+     *
+     * Upsampling by a whole factor (17^3 to 33^3 for export, say) is exact, since trilinear
+     * interpolation reproduces the cube's own trilinear cells. Downsampling keeps the lattice
+     * points that line up (65^3 to 17^3 keeps every 4th) and interpolates the rest, so detail
+     * between the new lattice points is lost.
+     */
+    fun resample(n: Int): ColorCube =
+            if (n == this.n) this
+            else KotlinCpuTrilinear.resampleCube(this, n)
+
     /**
      * For a single color we always use CPU.
      */
     override fun apply(color: Color): Color = KotlinCpuTrilinear.applyCubeToColor(this, color)
 
     /**
-     * For lists of colors we choose based on the settings at the top of this file, and whether the
-     * RS context has been initialized.
+     * For lists of colors the default BackendRegistry picks sequential CPU, parallel CPU or RS by
+     * the number of colors, and whether the RS context has been initialized.
      *
      * For instance, RS 3DLut is not available in junit tests, but may be used in Instrument tests.
+     *
+     * Cubes with a simpler structure skip the 3D lookup and go through the RGB float path.
      */
     override fun apply(colors: List<Color>): List<Color> = when {
-        useRenderScript3dLut() -> RsFriend.applyColorCubeToColors(this, colors)
-        useParallelCpu3dLut() -> KotlinCpuTrilinear.applyCubeToColorsInParallel(
-                this, colors, Util.executor)
-        else -> colors.map(::apply)
+        simpleStructure() != null ->
+            KotlinCpuTrilinear.applyToColorsAsRgb(colors) { apply(it, it) }
+        else -> BackendRegistry.default.apply(this, colors)
+    }
+
+    /**
+     * Same choice of implementation as for lists of colors, but straight on RGB floats.
+     */
+    override fun apply(src: FloatArray, dst: FloatArray, from: Int, to: Int) {
+        val simple = simpleStructure()
+        if (simple == null) {
+            BackendRegistry.default.apply(this, src, dst, from, to)
+        } else {
+            KotlinCpuTrilinear.applyOnCpu(from, to) { start, end ->
+                simple.apply(src, dst, start, end)
+            }
+        }
+    }
+
+    /**
+     * Apply to RGB floats, only using backends that meet [precision]. EXACT always goes through
+     * the lattice on the CPU, so the results are bit for bit the reference kernel's, and RELAXED is
+     * the same as the plain apply().
+     */
+    fun apply(
+            src: FloatArray,
+            dst: FloatArray,
+            precision: Precision,
+            from: Int = 0,
+            to: Int = src.size / N_CHANNELS_RGB
+    ) = when (precision) {
+        Precision.EXACT -> BackendRegistry.default.apply(this, src, dst, from, to, precision)
+        Precision.RELAXED -> apply(src, dst, from, to)
+    }
+
+    /**
+     * Apply to RGB floats at a given quality. Always CPU except for EXACT. See errorBound() for how
+     * far off the cheaper ones can be.
+     */
+    override fun apply(src: FloatArray, dst: FloatArray, quality: Quality, from: Int, to: Int) =
+            when (quality) {
+                Quality.EXACT -> apply(src, dst, from, to)
+                Quality.DOWNSAMPLED -> downsampled.apply(src, dst, from, to)
+                Quality.NEAREST -> KotlinCpuTrilinear.applyOnCpu(from, to) { start, end ->
+                    KotlinCpuTrilinear.applyCubeToRgbNearest(this, src, dst, start, end)
+                }
+            }
+
+    /**
+     * The DOWNSAMPLED version of this cube, made on first use. We keep every k-th lattice point
+     * for the smallest k that divides n - 1 and gets us to PREVIEW_N or less, so that every cell of
+     * this cube sits inside a cell of the smaller one.
+     */
+    private val downsampled: ColorCube by lazy {
+        val steps = n - 1
+        val k = (1..steps).first { steps % it == 0 && steps / it < PREVIEW_N }
+        resample(steps / k + 1)
+    }
+
+    private val downsampledErrorBound: Float by lazy {
+        if (downsampled === this) 0f
+        else {
+            val lattice = FloatArray(values.size)
+            downsampled.apply(identity(n).values, lattice)
+            values.indices.fold(0f) { max, i -> maxOf(max, abs(lattice[i] - values[i])) }
+        }
+    }
+
+    private val nearestErrorBound: Float by lazy { 1.5f * maxLatticeStep() }
+
+    /**
+     * The most any channel of a result at [quality] can differ from EXACT, for this cube.
+     *
+     * - DOWNSAMPLED: every cell of this cube is inside a cell of the smaller cube, and restricted
+     *   to one of our cells both are trilinear, so the difference is too. A trilinear function is
+     *   largest at a corner, so the bound is the largest difference at our own lattice points,
+     *   which we measure once. Identity and other affine cubes get 0, up to float error.
+     * - NEAREST: the nearest lattice point is at most half a step away along each axis, so it's
+     *   within 1.5 times the largest difference between neighboring lattice values.
+     */
+    fun errorBound(quality: Quality): Float = when (quality) {
+        Quality.EXACT -> 0f
+        Quality.DOWNSAMPLED -> downsampledErrorBound
+        Quality.NEAREST -> nearestErrorBound
+    }
+
+    /**
+     * Largest difference of any channel between lattice points next to each other on any axis.
+     */
+    private fun maxLatticeStep(): Float {
+        var max = 0f
+        val stepY = n * N_CHANNELS_RGB
+        val stepZ = n * stepY
+        var i = 0
+        for (z in 0 until n) {
+            for (y in 0 until n) {
+                for (x in 0 until n) {
+                    for (ch in i until i + N_CHANNELS_RGB) {
+                        val v = values[ch]
+                        if (x < n - 1) max = maxOf(max, abs(v - values[ch + N_CHANNELS_RGB]))
+                        if (y < n - 1) max = maxOf(max, abs(v - values[ch + stepY]))
+                        if (z < n - 1) max = maxOf(max, abs(v - values[ch + stepZ]))
+                    }
+                    i += N_CHANNELS_RGB
+                }
+            }
+        }
+        return max
+    }
+
+    /**
+     * Apply to a single color with the given interpolation.
+     */
+    fun apply(color: Color, interpolation: Interpolation): Color = when (interpolation) {
+        Interpolation.TRILINEAR -> apply(color)
+        Interpolation.TETRAHEDRAL -> KotlinCpuTetrahedral.applyCubeToColor(this, color)
+    }
+
+    /**
+     * Apply to a list of colors with the given interpolation.
+     */
+    fun apply(colors: List<Color>, interpolation: Interpolation): List<Color> =
+            when (interpolation) {
+                Interpolation.TRILINEAR -> apply(colors)
+                Interpolation.TETRAHEDRAL -> KotlinCpuTrilinear.applyToColorsAsRgb(colors) {
+                    apply(it, it, interpolation)
+                }
+            }
+
+    /**
+     * Apply to RGB floats with the given interpolation. Trilinear makes the usual choice of
+     * implementation, and tetrahedral is always CPU since lut3d.rs only does trilinear.
+     */
+    fun apply(
+            src: FloatArray,
+            dst: FloatArray,
+            interpolation: Interpolation,
+            from: Int = 0,
+            to: Int = src.size / N_CHANNELS_RGB
+    ) = when (interpolation) {
+        Interpolation.TRILINEAR -> apply(src, dst, from, to)
+        Interpolation.TETRAHEDRAL -> KotlinCpuTrilinear.applyOnCpu(from, to) { start, end ->
+            KotlinCpuTetrahedral.applyCubeToRgb(this, src, dst, start, end)
+        }
+    }
+
+    /**
+     * Apply to ColorInts [from, to) in [src], writing the results to the same positions in [dst]
+     * rounded to U8, with alpha passed through. Always CPU, using the U8 position tables.
+     */
+    fun apply(
+            @ColorInt src: IntArray,
+            @ColorInt dst: IntArray,
+            from: Int = 0,
+            to: Int = src.size
+    ) = KotlinCpuTrilinear.applyOnCpu(from, to) { start, end ->
+        KotlinCpuTrilinear.applyCubeToColorInts(this, src, dst, start, end)
+    }
+
+    /**
+     * Planar colors always go through the CPU planar kernel, since RS wants interleaved data.
+     */
+    fun apply(src: PlanarColorData, dst: PlanarColorData) =
+            KotlinCpuTrilinear.applyOnCpu(0, src.size) { start, end ->
+                KotlinCpuTrilinear.applyCubeToPlanar(this, src, dst, start, end)
+            }
+
+    /**
+     * Apply to an off-heap BufferColorData, writing into another one (or the same one). This is
+     * always CPU and never copies more than a few chunks of the image onto the heap.
+     */
+    fun apply(src: BufferColorData, dst: BufferColorData) =
+            KotlinCpuTrilinear.applyOnCpu(0, src.size) { start, end ->
+                KotlinCpuTrilinear.applyCubeToBuffer(this, src, dst, start, end)
+            }
+
+    infix operator fun times(data: PlanarColorData): PlanarColorData =
+            if (isIdentity()) data
+            else PlanarColorData(data.size).also { apply(data, it) }
+
+    final override fun copyRgbInto(dst: FloatArray, dstOffset: Int, start: Int, count: Int) {
+        values.copyInto(dst, dstOffset, start * N_CHANNELS_RGB, (start + count) * N_CHANNELS_RGB)
     }
 
     final override fun toColorCube(): ColorCube = this
 
+    /**
+     * The identity can come in any size.
+     */
+    override fun isIdentity(): Boolean = ENABLE_IDENTITY_SPECIAL_CASES && this == identity(n)
+
+    /**
+     * Cubes are equal when their values are within the Bounded epsilon, so results that only agree
+     * up to float error are still equal.
+     */
     final override fun equals(other: Any?): Boolean = when {
         this === other -> true
         other !is ColorCube -> false
-        else -> colors == other.colors
+        n != other.n -> false
+        else -> Util.sameValues(values, other.values)
     }
 
-    final override fun hashCode(): Int = colors.hashCode()
+    /**
+     * The epsilon comparison has no finer hash that agrees with it, so this only hashes the size.
+     * Key hash maps by fingerprint to look cubes up by content.
+     */
+    final override fun hashCode(): Int = n
+
+    /**
+     * Cubes with equal quantized values. Unlike equals() this is a real equivalence relation that
+     * agrees with fingerprint, so it returns false on a fingerprint mismatch without looking at
+     * any values.
+     */
+    fun quantizedEquals(other: ColorCube): Boolean = this === other ||
+            (fingerprint == other.fingerprint && Util.sameQuantizedValues(values, other.values))
 
     companion object {
         const val N = 17
@@ -49,6 +344,69 @@ open class ColorCube(
         const val N_COLORS = N * N * N
         const val N_VALUES_RGB = N_COLORS * N_CHANNELS_RGB
 
+        const val MIN_N = 2
+        const val MAX_N = 65
+
+        /**
+         * Largest lattice size for Quality.DOWNSAMPLED.
+         */
+        const val PREVIEW_N = 9
+
         val identity: ColorCube = IdentityCube
+
+        /**
+         * The identity ColorCube with an n^3 lattice.
+         */
+        fun identity(n: Int): ColorCube = identityCube(n)
+
+        /**
+         * cubes[0] * cubes[1] * ... * cubes[k - 1], the same product as folding the list from the
+         * right with times(), but reduced as a balanced tree. Each round composes neighboring
+         * pairs in parallel on [executor], so k cubes take log2(k) rounds instead of k - 1
+         * compositions in a row. The result has the lattice size of the last cube, like the
+         * fold, and the identity for no cubes.
+         *
+         * Composing is associative, but a composed cube is only sampled at its lattice points.
+         * The fold only ever interpolates the original cubes, while the tree interpolates partial
+         * products, which are more curved, so for cubes that aren't linear within a cell the tree
+         * is a little less accurate. For a chain of 17 gentle curves that's within 3 U8 steps of
+         * the exact result at worst, and a fraction of a step on average. Cubes that are linear
+         * within each cell, like matrices, come out the same either way.
+         */
+        fun composeAll(
+                cubes: List<ColorCube>,
+                executor: ExecutorService = Util.executor
+        ): ColorCube {
+            var round = cubes
+            while (round.size > 1) {
+                val pairs = (0 until round.size / 2).map { i ->
+                    val left = round[2 * i]
+                    val right = round[2 * i + 1]
+                    executor.submit(Callable { left * right })
+                }
+                val next = pairs.map { it.get() }
+                round = if (round.size % 2 == 0) next else next + round.last()
+            }
+            return round.firstOrNull() ?: IdentityCube
+        }
+
+        /**
+         * Create a ColorCube from interleaved RGB values. The values are copied and must all be
+         * in [0,1]. The lattice size comes from the number of values.
+         */
+        fun fromFloatArray(values: FloatArray): ColorCube {
+            require(values.size % N_CHANNELS_RGB == 0) { "expected RGB values got ${values.size}" }
+            require(values.all { it in 0f..1f }) { "expected values in [0,1]" }
+            return ColorCube(values.copyOf(), latticeDimension(values.size / N_CHANNELS_RGB))
+        }
+
+        /**
+         * The n for a lattice of nColors colors. Throws if nColors isn't a supported cube size.
+         */
+        fun latticeDimension(nColors: Int): Int {
+            val n = (MIN_N..MAX_N).firstOrNull { it * it * it >= nColors } ?: MAX_N
+            require(n * n * n == nColors) { "$nColors colors is not a $MIN_N^3 to $MAX_N^3 lattice" }
+            return n
+        }
     }
 }
@@ -1,5 +1,7 @@
 package cat.the.lydia.coolalgebralydiathanks
 
+import androidx.annotation.ColorInt
+import cat.the.lydia.coolalgebralydiathanks.utils.N_CHANNELS_RGB
 import cat.the.lydia.coolalgebralydiathanks.utils.Util
 
 interface ColorData {
@@ -7,6 +9,44 @@ interface ColorData {
     val size: Int
         get() = colors.size
 
+    /**
+     * Copy [count] colors starting at [start] into [dst] as interleaved RGB floats, starting at
+     * [dstOffset].
+     *
+     * The default goes through colors. Primitive-backed ColorData overrides this so bulk work never
+     * has to create Colors.
+     */
+    fun copyRgbInto(
+            dst: FloatArray,
+            dstOffset: Int = 0,
+            start: Int = 0,
+            count: Int = size - start
+    ) {
+        require(dstOffset + count * N_CHANNELS_RGB <= dst.size)
+        var n = dstOffset
+        for (i in start until start + count) {
+            val color = colors[i]
+            dst[n++] = color.r.value
+            dst[n++] = color.g.value
+            dst[n++] = color.b.value
+        }
+    }
+
+    /**
+     * Copy [count] colors starting at [start] into [dst] as ColorInts, starting at [dstOffset].
+     */
+    fun copyColorIntsInto(
+            @ColorInt dst: IntArray,
+            dstOffset: Int = 0,
+            start: Int = 0,
+            count: Int = size - start
+    ) {
+        require(dstOffset + count <= dst.size)
+        for (i in 0 until count) {
+            dst[dstOffset + i] = Util.colorToColorInt(colors[start + i])
+        }
+    }
+
     /**
      * Returns true if ColorData has the same colors as another ColorData instance.
      */
@@ -1,5 +1,9 @@
 package cat.the.lydia.coolalgebralydiathanks
 
+import cat.the.lydia.coolalgebralydiathanks.implementation.KotlinCpuTrilinear
+import cat.the.lydia.coolalgebralydiathanks.utils.CompositionCache
+import cat.the.lydia.coolalgebralydiathanks.utils.N_CHANNELS_RGB
+import cat.the.lydia.coolalgebralydiathanks.utils.Util
 import cat.the.lydia.coolalgebralydiathanks.utils.linearInterpolate
 
 interface ColorFunc {
@@ -7,6 +11,43 @@ interface ColorFunc {
     fun apply(colors: List<Color>): List<Color>
     fun toColorCube(): ColorCube
 
+    /**
+     * Apply to colors [from, to) stored as interleaved RGB floats in [src], writing the results to
+     * the same positions in [dst]. [src] and [dst] may be the same array.
+     *
+     * The default goes through apply(List<Color>) on a view of the range. ColorFuncs that can work
+     * on floats directly should override this.
+     */
+    fun apply(
+            src: FloatArray,
+            dst: FloatArray,
+            from: Int = 0,
+            to: Int = src.size / N_CHANNELS_RGB
+    ) {
+        val results = apply(RgbFloatColorList(src).subList(from, to))
+        Util.copyColorsIntoFloatArray(results, dst, from * N_CHANNELS_RGB)
+    }
+
+    /**
+     * Apply to RGB floats at a given quality. Anything but EXACT bakes this into a ColorCube first,
+     * so for repeated previews keep the cube around and apply that.
+     */
+    fun apply(
+            src: FloatArray,
+            dst: FloatArray,
+            quality: Quality,
+            from: Int = 0,
+            to: Int = src.size / N_CHANNELS_RGB
+    ) = if (quality == Quality.EXACT) apply(src, dst, from, to)
+    else toColorCube().apply(src, dst, quality, from, to)
+
+    /**
+     * Apply to a list of colors at a given quality.
+     */
+    fun apply(colors: List<Color>, quality: Quality): List<Color> =
+            if (quality == Quality.EXACT) apply(colors)
+            else KotlinCpuTrilinear.applyToColorsAsRgb(colors) { apply(it, it, quality) }
+
     fun isIdentity(): Boolean = if (ENABLE_IDENTITY_SPECIAL_CASES) this == IdentityCube else false
 
     fun interpWith(b: ColorFunc, scale: Bounded): ColorCube = linearInterpolate(this, b, scale)
@@ -20,29 +61,60 @@ interface ColorFunc {
     infix operator fun times(data: List<Color>): ColorData = this * data.toColorData()
 
     // ColorFunc -> Photo -> Photo
+    // Only the photo's own pixels are computed, so for a region view that's just the region.
     infix operator fun times(photo: Photo): Photo =
             if (isIdentity()) photo
             else {
-                Photo(apply(photo.colors), photo.width, photo.height)
+                val values = FloatArray(photo.size * N_CHANNELS_RGB)
+                photo.copyRgbInto(values)
+                apply(values, values)
+                Photo(RgbFloatData(values), photo.width, photo.height)
             }
 
     // ColorFunc -> ColorCube -> ColorCube
+    // Cube after cube goes through the composition cache.
     infix operator fun times(cube: ColorCube): ColorCube = when {
         cube.isIdentity() -> this.toColorCube()
         this.isIdentity() -> cube
         this == cube -> cube
-        else -> ColorCube(apply(cube.colors))
+        else -> composeWithLattice(cube)
     }
 
+    // ColorFunc -> HalfColorCube -> ColorCube
+    // HalfColorCube is both ColorFunc and ColorData, so it needs its own overload.
+    infix operator fun times(cube: HalfColorCube): ColorCube = this * cube.toColorCube()
+
+    // ColorFunc -> ShapedColorCube -> ShapedColorCube
+    // Applying to the lattice keeps the shaper, and is exact at every lattice point.
+    infix operator fun times(cube: ShapedColorCube): ShapedColorCube =
+            if (isIdentity()) cube
+            else ShapedColorCube(cube.red, cube.green, cube.blue, this * cube.cube)
+
     // ColorFunc -> ColorCube -> ColorCube
     infix operator fun times(cube: ColorFunc): ColorCube = when {
         cube.isIdentity() -> this.toColorCube()
         this.isIdentity() -> cube.toColorCube()
         this == cube -> cube.toColorCube()
-        else -> ColorCube(apply(cube.toColorCube().colors))
+        else -> composeWithLattice(cube.toColorCube())
     }
 }
 
+/**
+ * applyToLattice(), through CompositionCache.default if we're a ColorCube too, since then we have
+ * a content fingerprint to key on.
+ */
+internal fun ColorFunc.composeWithLattice(cube: ColorCube): ColorCube =
+        if (DO_CACHE_COMPOSITION && this is ColorCube)
+            CompositionCache.default.getOrCompose(this, cube) { applyToLattice(cube) }
+        else applyToLattice(cube)
+
+/**
+ * Apply a ColorFunc to the lattice of a ColorCube. The result has the same lattice size as the
+ * cube, so composing cubes of different sizes just works.
+ */
+internal fun ColorFunc.applyToLattice(cube: ColorCube): ColorCube =
+        ColorCube(FloatArray(cube.values.size).also { apply(cube.values, it) }, cube.n)
+
 
 /**
  * A ColorFunc wrapping a (List<Color>) -> List<Color>.
@@ -59,6 +131,13 @@ class U8ColorFunc(val f: ColorFunc) : ColorFunc {
     override fun apply(colors: List<Color>): List<Color> =
             f.apply(colors).map(Color::clampToU8Color)
 
+    override fun apply(src: FloatArray, dst: FloatArray, from: Int, to: Int) {
+        f.apply(src, dst, from, to)
+        for (i in from * N_CHANNELS_RGB until to * N_CHANNELS_RGB) {
+            dst[i] = Util.u8ToNormal(Util.normalToU8(dst[i]))
+        }
+    }
+
     override fun isIdentity(): Boolean = false
     override fun toColorCube(): ColorCube = ColorCube(apply(IdentityCube.colors))
 }
@@ -0,0 +1,48 @@
+package cat.the.lydia.coolalgebralydiathanks
+
+import androidx.annotation.ColorInt
+import cat.the.lydia.coolalgebralydiathanks.utils.N_CHANNELS_RGB
+import cat.the.lydia.coolalgebralydiathanks.utils.Util
+
+/**
+ * ColorData backed by packed ARGB_8888 ColorInts, the format we get straight out of a Bitmap. The
+ * alpha channel is ignored. The array is not copied, so don't modify it afterwards.
+ */
+class ColorIntData(@ColorInt val colorInts: IntArray) : ColorData {
+    init {
+        require(colorInts.isNotEmpty()) { "oops no colors!" }
+    }
+
+    override val colors: List<Color> = ColorIntColorList(colorInts)
+
+    override val size: Int
+        get() = colorInts.size
+
+    override fun copyRgbInto(dst: FloatArray, dstOffset: Int, start: Int, count: Int) {
+        require(dstOffset + count * N_CHANNELS_RGB <= dst.size)
+        var n = dstOffset
+        for (i in start until start + count) {
+            val c = colorInts[i]
+            dst[n++] = Util.u8ToNormal(Util.red(c))
+            dst[n++] = Util.u8ToNormal(Util.green(c))
+            dst[n++] = Util.u8ToNormal(Util.blue(c))
+        }
+    }
+
+    override fun copyColorIntsInto(dst: IntArray, dstOffset: Int, start: Int, count: Int) {
+        colorInts.copyInto(dst, dstOffset, start, start + count)
+    }
+
+    override fun toString(): String = "ColorIntData(size=$size)"
+}
+
+/**
+ * Read-only List<Color> view over ColorInts.
+ */
+private class ColorIntColorList(private val colorInts: IntArray) : AbstractList<Color>(), RandomAccess {
+
+    override val size: Int
+        get() = colorInts.size
+
+    override fun get(index: Int): Color = Util.colorIntToColor(colorInts[index])
+}
@@ -1,5 +1,6 @@
 package cat.the.lydia.coolalgebralydiathanks
 
+import cat.the.lydia.coolalgebralydiathanks.utils.Half
 
 /**
  * Simple ColorData implementation.
@@ -16,3 +17,57 @@ data class ColorList(override val colors: List<Color>) : ColorData {
  * Get a ColorData from a List<Color>
  */
 fun List<Color>.toColorData(): ColorData = ColorList(this)
+
+/**
+ * Read-only List<Color> view over interleaved RGB floats. Colors are created on access and nothing
+ * is cached, so this is only meant for compatibility with code that wants Colors.
+ */
+internal class RgbFloatColorList(private val values: FloatArray) : AbstractList<Color>(), RandomAccess {
+
+    override val size: Int
+        get() = values.size / 3
+
+    override fun get(index: Int): Color {
+        if (index !in 0 until size) throw IndexOutOfBoundsException("index=$index size=$size")
+        val n = index * 3
+        return Color(Bounded(values[n]), Bounded(values[n + 1]), Bounded(values[n + 2]))
+    }
+}
+
+/**
+ * Read-only List<Color> view over R, G and B planes, for compatibility like RgbFloatColorList.
+ */
+internal class PlanarColorList(
+        private val r: FloatArray,
+        private val g: FloatArray,
+        private val b: FloatArray
+) : AbstractList<Color>(), RandomAccess {
+
+    override val size: Int
+        get() = r.size
+
+    override fun get(index: Int): Color {
+        if (index !in 0 until size) throw IndexOutOfBoundsException("index=$index size=$size")
+        return Color(Bounded(r[index]), Bounded(g[index]), Bounded(b[index]))
+    }
+}
+
+/**
+ * Read-only List<Color> view over interleaved RGB half-floats, for compatibility like
+ * RgbFloatColorList.
+ */
+internal class HalfFloatColorList(private val values: ShortArray) : AbstractList<Color>(), RandomAccess {
+
+    override val size: Int
+        get() = values.size / 3
+
+    override fun get(index: Int): Color {
+        if (index !in 0 until size) throw IndexOutOfBoundsException("index=$index size=$size")
+        val n = index * 3
+        return Color(
+                Bounded(Half.toFloat(values[n])),
+                Bounded(Half.toFloat(values[n + 1])),
+                Bounded(Half.toFloat(values[n + 2]))
+        )
+    }
+}
@@ -0,0 +1,109 @@
+package cat.the.lydia.coolalgebralydiathanks
+
+import cat.the.lydia.coolalgebralydiathanks.implementation.KotlinCpuTrilinear
+import cat.the.lydia.coolalgebralydiathanks.utils.N_CHANNELS_RGB
+import cat.the.lydia.coolalgebralydiathanks.utils.Util
+import java.util.concurrent.ForkJoinPool
+
+/**
+ * A chain of ColorFuncs that is only recorded, not evaluated, until it's applied.
+ *
+ * Applying each stage of a look to a Photo in turn makes a full-size intermediate for every stage,
+ * so a five-stage look on a 12MP image goes through five 12MP lists. Applying a ComposedColorFunc
+ * instead runs every stage over one small chunk of pixels at a time, in place, before moving on to
+ * the next chunk, so the only full-size array is the result and the chunk being worked on stays
+ * in cache. Big inputs are split into ranges with fork/join and each range does its own chunks.
+ *
+ * The results are exactly what applying the stages one after another would give. Nothing is baked,
+ * so there's none of the error a cube adds. When a cube is what you want, e.g. to apply the same
+ * look to lots of photos or to hand it to RS, use bake() or toColorCube().
+ *
+ * Stages apply in the order given, so ComposedColorFunc(a, b) is b * a as cubes.
+ */
+class ComposedColorFunc private constructor(
+        /**
+         * The stages in the order they're applied. Nested ComposedColorFuncs are flattened.
+         */
+        val stages: List<ColorFunc>,
+        private val pool: ForkJoinPool
+) : ColorFunc {
+
+    constructor(vararg stages: ColorFunc, pool: ForkJoinPool = Util.forkJoinPool) :
+            this(flatten(stages.asList()), pool)
+
+    /**
+     * This chain with [next] applied after it. Neither is evaluated.
+     */
+    infix fun then(next: ColorFunc): ComposedColorFunc =
+            ComposedColorFunc(stages + flatten(listOf(next)), pool)
+
+    override fun apply(color: Color): Color = stages.fold(color) { c, stage -> stage.apply(c) }
+
+    override fun apply(colors: List<Color>): List<Color> =
+            KotlinCpuTrilinear.applyToColorsAsRgb(colors) { apply(it, it) }
+
+    /**
+     * Run every stage over each chunk of [from, to) before moving on to the next chunk. The first
+     * stage reads [src] and writes [dst], and the rest work in place on [dst].
+     */
+    override fun apply(src: FloatArray, dst: FloatArray, from: Int, to: Int) {
+        if (stages.isEmpty()) {
+            if (src !== dst) {
+                src.copyInto(dst, from * N_CHANNELS_RGB, from * N_CHANNELS_RGB, to * N_CHANNELS_RGB)
+            }
+            return
+        }
+        val threshold = KotlinCpuTrilinear.forkJoinThreshold(to - from, pool.parallelism)
+                .coerceAtLeast(CHUNK_SIZE)
+        KotlinCpuTrilinear.applyOnCpu(from, to, pool, threshold) { start, end ->
+            applyInChunks(src, dst, start, end)
+        }
+    }
+
+    private fun applyInChunks(src: FloatArray, dst: FloatArray, from: Int, to: Int) {
+        var start = from
+        while (start < to) {
+            val end = (start + CHUNK_SIZE).coerceAtMost(to)
+            var input = src
+            for (stage in stages) {
+                stage.apply(input, dst, start, end)
+                input = dst
+            }
+            start = end
+        }
+    }
+
+    /**
+     * Explicitly bake the whole chain into an n^3 cube, evaluating it once per lattice point.
+     */
+    fun bake(n: Int = ColorCube.N): ColorCube = applyToLattice(ColorCube.identity(n))
+
+    override fun toColorCube(): ColorCube = bake()
+
+    override fun isIdentity(): Boolean = stages.isEmpty()
+
+    override fun toString(): String = "ComposedColorFunc(${stages.joinToString()})"
+
+    companion object {
+        /**
+         * Colors per chunk. Small enough that a chunk of RGB floats stays in L1 or L2 cache
+         * through every stage, big enough that stages working on floats run their tight loops.
+         */
+        const val CHUNK_SIZE = 1024
+
+        private fun flatten(stages: List<ColorFunc>): List<ColorFunc> = stages.flatMap {
+            when {
+                it is ComposedColorFunc -> it.stages
+                it.isIdentity() -> emptyList()
+                else -> listOf(it)
+            }
+        }
+    }
+}
+
+/**
+ * Record [next] to be applied after this, without evaluating or baking anything.
+ */
+infix fun ColorFunc.then(next: ColorFunc): ComposedColorFunc =
+        if (this is ComposedColorFunc) this then next
+        else ComposedColorFunc(this, next)
@@ -0,0 +1,185 @@
+package cat.the.lydia.coolalgebralydiathanks
+
+import cat.the.lydia.coolalgebralydiathanks.implementation.KotlinCpuTrilinear
+import cat.the.lydia.coolalgebralydiathanks.utils.N_CHANNELS_RGB
+import kotlin.math.abs
+
+/**
+ * What a ColorCube really is, if it's simpler than a full 3D lattice.
+ *
+ * Lots of cubes are just per-channel curves or a color matrix, and a 3D lookup is wasted on them.
+ * Each cube works this out once, the first time it's needed, and ColorCube.apply() uses the
+ * cheaper kernel when it can.
+ *
+ * Detection allows every lattice value to be off by up to [TOLERANCE]. Trilinear interpolation is
+ * a convex combination of lattice values, and both kernels reproduce the trilinear result of the
+ * lattice they fit exactly, so results are within the same tolerance of exact trilinear
+ * interpolation. The 3D lookup itself snaps lerps between values closer than the Bounded epsilon,
+ * so compared to it the results are within Bounded.BOUNDED_EPS, and still count as the same
+ * colors.
+ */
+sealed class CubeStructure {
+
+    /**
+     * Nothing simpler, use the 3D lookup.
+     */
+    object General : CubeStructure() {
+        override fun toString(): String = "General"
+    }
+
+    /**
+     * A structure we can apply directly instead of the 3D lookup.
+     */
+    sealed class Direct : CubeStructure() {
+
+        /**
+         * Apply to colors [from, to) stored as interleaved RGB floats, writing the results to the
+         * same positions in dst. src and dst may be the same array.
+         */
+        abstract fun apply(src: FloatArray, dst: FloatArray, from: Int, to: Int)
+    }
+
+    /**
+     * Each output channel only depends on the same input channel, so the cube is three 1D curves
+     * with n points each. Applying is a linear interpolation into each curve, which is what
+     * trilinear does along one axis.
+     */
+    class Separable internal constructor(
+            internal val red: FloatArray,
+            internal val green: FloatArray,
+            internal val blue: FloatArray
+    ) : Direct() {
+
+        override fun apply(src: FloatArray, dst: FloatArray, from: Int, to: Int) {
+            for (i in from until to) {
+                val c = i * N_CHANNELS_RGB
+                dst[c] = curve(red, src[c])
+                dst[c + 1] = curve(green, src[c + 1])
+                dst[c + 2] = curve(blue, src[c + 2])
+            }
+        }
+
+        @Suppress("NOTHING_TO_INLINE")
+        private inline fun curve(points: FloatArray, v: Float): Float {
+            val last = points.size - 1
+            val x = last * v
+            val x0 = KotlinCpuTrilinear.latticeOrigin(x, last)
+            val dx = KotlinCpuTrilinear.latticeFraction(x, x0)
+            val a = points[x0]
+            return a + (points[x0 + 1] - a) * dx
+        }
+
+        override fun toString(): String = "Separable(n=${red.size})"
+    }
+
+    /**
+     * The cube is a 3x3 matrix plus an offset, which covers greyscale, channel gains and mixing,
+     * hue rotations and so on. Trilinear interpolation reproduces affine functions, so applying
+     * the matrix directly is the same thing. Results are clamped to [0,1] since the fit can be off
+     * by the tolerance at the corners.
+     */
+    class Affine internal constructor(
+            /**
+             * Row-major, so row i gives output channel i.
+             */
+            internal val matrix: FloatArray,
+            internal val offset: FloatArray
+    ) : Direct() {
+
+        override fun apply(src: FloatArray, dst: FloatArray, from: Int, to: Int) {
+            val m = matrix
+            val o = offset
+            for (i in from until to) {
+                val c = i * N_CHANNELS_RGB
+                val r = src[c]
+                val g = src[c + 1]
+                val b = src[c + 2]
+                dst[c] = (o[0] + m[0] * r + m[1] * g + m[2] * b).coerceIn(0f, 1f)
+                dst[c + 1] = (o[1] + m[3] * r + m[4] * g + m[5] * b).coerceIn(0f, 1f)
+                dst[c + 2] = (o[2] + m[6] * r + m[7] * g + m[8] * b).coerceIn(0f, 1f)
+            }
+        }
+
+        override fun toString(): String =
+                "Affine(matrix=${matrix.contentToString()}, offset=${offset.contentToString()})"
+    }
+
+    companion object {
+        /**
+         * How far any lattice value may be from the simpler structure.
+         */
+        const val TOLERANCE = Bounded.BOUNDED_EPS / 2
+
+        /**
+         * Work out the structure of a cube. Affine wins over separable since a matrix is cheaper
+         * than three curve lookups.
+         */
+        fun of(cube: ColorCube, tolerance: Float = TOLERANCE): CubeStructure =
+                affine(cube, tolerance) ?: separable(cube, tolerance) ?: General
+
+        /**
+         * Fit the offset from the corner at the origin and the matrix from the far corner along
+         * each axis, then check every lattice point.
+         */
+        private fun affine(cube: ColorCube, tolerance: Float): Affine? {
+            val v = cube.values
+            val n = cube.n
+            val last = n - 1
+            val offset = FloatArray(N_CHANNELS_RGB) { v[it] }
+            val matrix = FloatArray(9)
+            val axisSteps = intArrayOf(1, n, n * n)
+            for (axis in 0 until 3) {
+                val corner = last * axisSteps[axis] * N_CHANNELS_RGB
+                for (ch in 0 until N_CHANNELS_RGB) {
+                    matrix[ch * 3 + axis] = v[corner + ch] - offset[ch]
+                }
+            }
+
+            val step = 1f / last
+            var i = 0
+            for (z in 0 until n) {
+                val b = z * step
+                for (y in 0 until n) {
+                    val g = y * step
+                    for (x in 0 until n) {
+                        val r = x * step
+                        for (ch in 0 until N_CHANNELS_RGB) {
+                            val fit = offset[ch] + matrix[ch * 3] * r +
+                                    matrix[ch * 3 + 1] * g + matrix[ch * 3 + 2] * b
+                            if (abs(v[i + ch] - fit) > tolerance) return null
+                        }
+                        i += N_CHANNELS_RGB
+                    }
+                }
+            }
+            return Affine(matrix, offset)
+        }
+
+        /**
+         * Take the curves along the three edges through the origin, then check that every lattice
+         * point agrees with them.
+         */
+        private fun separable(cube: ColorCube, tolerance: Float): Separable? {
+            val v = cube.values
+            val n = cube.n
+            val red = FloatArray(n) { v[it * N_CHANNELS_RGB] }
+            val green = FloatArray(n) { v[it * n * N_CHANNELS_RGB + 1] }
+            val blue = FloatArray(n) { v[it * n * n * N_CHANNELS_RGB + 2] }
+
+            var i = 0
+            for (z in 0 until n) {
+                for (y in 0 until n) {
+                    for (x in 0 until n) {
+                        if (abs(v[i] - red[x]) > tolerance ||
+                                abs(v[i + 1] - green[y]) > tolerance ||
+                                abs(v[i + 2] - blue[z]) > tolerance) {
+                            return null
+                        }
+                        i += N_CHANNELS_RGB
+                    }
+                }
+            }
+            return Separable(red, green, blue)
+        }
+    }
+}
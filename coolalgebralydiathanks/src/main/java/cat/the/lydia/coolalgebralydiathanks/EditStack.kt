@@ -0,0 +1,193 @@
+package cat.the.lydia.coolalgebralydiathanks
+
+/**
+ * A stack of cube layers that keeps their product up to date as layers are edited.
+ *
+ * The product is layers[0] * layers[1] * ... * layers[k - 1], like ColorCube.composeAll(). The
+ * layers are the leaves of a balanced binary tree, and every branch holds the product of its two
+ * children, so the root is the product of the whole stack. Changing a layer only recomposes the
+ * branches above it, which is log2(k) compositions instead of the k - 1 of folding the whole
+ * stack again, so dragging a slider on one layer of a 16 layer stack costs 4 compositions a tick.
+ *
+ * Inserting and removing layers works the same way. When that leaves a branch lopsided we
+ * rebuild just that branch, which keeps the tree balanced with O(log k) amortized compositions.
+ *
+ * Branches are never modified, edits make new ones along the path they change, so reads never
+ * need a lock and always see a complete stack. Edits are synchronized.
+ *
+ * The product is a tree of compositions rather than a fold, so it can differ from folding the
+ * layers by as much as composeAll() does. See there.
+ */
+class EditStack(layers: List<ColorCube> = emptyList()) {
+
+    /**
+     * A layer if there are no children, otherwise the product of the children.
+     */
+    private class Node(val left: Node?, val right: Node?, val cube: ColorCube) {
+        val size: Int = if (left == null || right == null) 1 else left.size + right.size
+
+        val isLayer: Boolean
+            get() = left == null
+    }
+
+    /**
+     * Compositions done so far, including building the initial stack.
+     */
+    @Volatile
+    var compositions: Long = 0
+        private set
+
+    @Volatile
+    private var root: Node? = build(layers.map(::layer))
+
+    val size: Int
+        get() = root?.size ?: 0
+
+    /**
+     * The product of every layer, or the identity for no layers.
+     */
+    val product: ColorCube
+        get() = root?.cube ?: IdentityCube
+
+    val layers: List<ColorCube>
+        get() = ArrayList<ColorCube>().also { collect(root, it) }
+
+    operator fun get(index: Int): ColorCube {
+        val top = root
+        checkIndex(index, top?.size ?: 0)
+        var node = top!!
+        var i = index
+        while (!node.isLayer) {
+            val left = node.left!!
+            if (i < left.size) node = left
+            else {
+                i -= left.size
+                node = node.right!!
+            }
+        }
+        return node.cube
+    }
+
+    /**
+     * Replace one layer and recompose the branches above it.
+     */
+    operator fun set(index: Int, cube: ColorCube) = synchronized(this) {
+        checkIndex(index, size)
+        root = set(root!!, index, cube)
+    }
+
+    fun add(cube: ColorCube) = synchronized(this) { add(size, cube) }
+
+    /**
+     * Insert a layer before [index], or at the top with index == size.
+     */
+    fun add(index: Int, cube: ColorCube) = synchronized(this) {
+        checkIndex(index, size + 1)
+        root = root?.let { insert(it, index, cube) } ?: layer(cube)
+    }
+
+    fun removeAt(index: Int): ColorCube = synchronized(this) {
+        val removed = get(index)
+        root = remove(root!!, index)
+        removed
+    }
+
+    private fun set(node: Node, index: Int, cube: ColorCube): Node {
+        if (node.isLayer) return layer(cube)
+        val left = node.left!!
+        val right = node.right!!
+        return if (index < left.size) branch(set(left, index, cube), right)
+        else branch(left, set(right, index - left.size, cube))
+    }
+
+    private fun insert(node: Node, index: Int, cube: ColorCube): Node {
+        if (node.isLayer) {
+            return if (index == 0) branch(layer(cube), node) else branch(node, layer(cube))
+        }
+        val left = node.left!!
+        val right = node.right!!
+        val intoLeft = index < left.size
+        // check on the way down, so we rebuild the highest lopsided branch and nothing below it
+        val leftSize = if (intoLeft) left.size + 1 else left.size
+        if (!isBalanced(leftSize, node.size + 1)) {
+            val leaves = ArrayList<Node>(node.size + 1)
+            collectLayers(node, leaves)
+            leaves.add(index, layer(cube))
+            return build(leaves)!!
+        }
+        return if (intoLeft) branch(insert(left, index, cube), right)
+        else branch(left, insert(right, index - left.size, cube))
+    }
+
+    private fun remove(node: Node, index: Int): Node? {
+        if (node.isLayer) return null
+        val left = node.left!!
+        val right = node.right!!
+        val fromLeft = index < left.size
+        val leftSize = if (fromLeft) left.size - 1 else left.size
+        if (!isBalanced(leftSize, node.size - 1)) {
+            val leaves = ArrayList<Node>(node.size)
+            collectLayers(node, leaves)
+            leaves.removeAt(index)
+            return build(leaves)
+        }
+        return if (fromLeft) {
+            remove(left, index)?.let { branch(it, right) } ?: right
+        } else {
+            remove(right, index - left.size)?.let { branch(left, it) } ?: left
+        }
+    }
+
+    /**
+     * A balanced tree over [leaves], in order.
+     */
+    private fun build(leaves: List<Node>): Node? = when (leaves.size) {
+        0 -> null
+        1 -> leaves[0]
+        else -> {
+            val mid = leaves.size / 2
+            branch(build(leaves.subList(0, mid))!!, build(leaves.subList(mid, leaves.size))!!)
+        }
+    }
+
+    private fun layer(cube: ColorCube) = Node(null, null, cube)
+
+    private fun branch(left: Node, right: Node): Node {
+        compositions++
+        return Node(left, right, left.cube * right.cube)
+    }
+
+    private fun collectLayers(node: Node, leaves: MutableList<Node>) {
+        if (node.isLayer) leaves += node
+        else {
+            collectLayers(node.left!!, leaves)
+            collectLayers(node.right!!, leaves)
+        }
+    }
+
+    private fun collect(node: Node?, cubes: MutableList<ColorCube>) {
+        if (node == null) return
+        if (node.isLayer) cubes += node.cube
+        else {
+            collect(node.left, cubes)
+            collect(node.right, cubes)
+        }
+    }
+
+    private fun checkIndex(index: Int, size: Int) {
+        if (index !in 0 until size) throw IndexOutOfBoundsException("index=$index size=$size")
+    }
+
+    override fun toString(): String = "EditStack(size=$size)"
+
+    companion object {
+        /**
+         * Largest share of a branch's layers either child can have before we rebuild it. Small
+         * branches get some slack, since 2 layers out of 3 is as even as 3 can be.
+         */
+        private const val MAX_CHILD_SHARE = 0.7
+
+        private fun isBalanced(childSize: Int, size: Int): Boolean =
+                size <= 3 || maxOf(childSize, size - childSize) <= MAX_CHILD_SHARE * size
+    }
+}
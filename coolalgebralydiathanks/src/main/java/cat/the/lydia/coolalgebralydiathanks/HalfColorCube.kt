@@ -0,0 +1,87 @@
+package cat.the.lydia.coolalgebralydiathanks
+
+import cat.the.lydia.coolalgebralydiathanks.implementation.KotlinCpuTrilinear
+import cat.the.lydia.coolalgebralydiathanks.utils.Half
+import cat.the.lydia.coolalgebralydiathanks.utils.N_CHANNELS_RGB
+
+/**
+ * A ColorCube stored as half-floats, for keeping lots of cubes resident at half the memory.
+ *
+ * This is a full ColorFunc. The CPU kernels read the halves directly and do all the interpolation
+ * in float, so applying one differs from applying the float cube only by the rounding of the
+ * lattice values, which is at most 2^-12 per value in [0,1]. Interpolation is a convex
+ * combination of lattice values, so results are also within 2^-12 of the float cube's.
+ *
+ * Composing with a HalfColorCube on the left gives a float ColorCube as usual. Every time a
+ * result is stored back as halves it picks up at most another 2^-12 of rounding, on top of the
+ * error the cubes being composed already had, so a chain of k stored compositions is within about
+ * k * 2^-12 of the float version for cubes that don't stretch colors apart. That's still well
+ * under half a U8 step for any reasonable chain.
+ */
+class HalfColorCube internal constructor(
+        internal val halfValues: ShortArray,
+        /**
+         * Lattice points per side.
+         */
+        val n: Int
+) : ColorFunc, ColorData {
+
+    init {
+        require(n in ColorCube.MIN_N..ColorCube.MAX_N) {
+            "expected n in ${ColorCube.MIN_N}..${ColorCube.MAX_N} got n=$n"
+        }
+        require(halfValues.size == n * n * n * N_CHANNELS_RGB) {
+            "expected ${n * n * n * N_CHANNELS_RGB} values for n=$n got ${halfValues.size}"
+        }
+    }
+
+    constructor(cube: ColorCube) : this(Half.toHalfArray(cube.values), cube.n)
+
+    override val colors: List<Color> = HalfFloatColorList(halfValues)
+
+    override val size: Int
+        get() = n * n * n
+
+    override fun apply(color: Color): Color = KotlinCpuTrilinear.applyHalfCubeToColor(this, color)
+
+    override fun apply(colors: List<Color>): List<Color> =
+            KotlinCpuTrilinear.applyToColorsAsRgb(colors) { apply(it, it) }
+
+    override fun apply(src: FloatArray, dst: FloatArray, from: Int, to: Int) =
+            KotlinCpuTrilinear.applyOnCpu(from, to) { start, end ->
+                KotlinCpuTrilinear.applyHalfCubeToRgb(this, src, dst, start, end)
+            }
+
+    override fun copyRgbInto(dst: FloatArray, dstOffset: Int, start: Int, count: Int) {
+        require(dstOffset + count * N_CHANNELS_RGB <= dst.size)
+        val offset = start * N_CHANNELS_RGB
+        for (i in 0 until count * N_CHANNELS_RGB) {
+            dst[dstOffset + i] = Half.toFloat(halfValues[offset + i])
+        }
+    }
+
+    /**
+     * Expand back to a float ColorCube.
+     */
+    override fun toColorCube(): ColorCube = ColorCube(Half.toFloatArray(halfValues), n)
+
+    override fun isIdentity(): Boolean = false
+
+    /**
+     * Halves are already quantized, so equality is exact.
+     */
+    override fun equals(other: Any?): Boolean = when {
+        this === other -> true
+        other !is HalfColorCube -> false
+        else -> n == other.n && halfValues.contentEquals(other.halfValues)
+    }
+
+    override fun hashCode(): Int = halfValues.contentHashCode()
+
+    override fun toString(): String = "HalfColorCube(n=$n)"
+}
+
+/**
+ * Store a ColorCube as halves.
+ */
+fun ColorCube.toHalfColorCube(): HalfColorCube = HalfColorCube(this)
@@ -0,0 +1,80 @@
+package cat.the.lydia.coolalgebralydiathanks
+
+import cat.the.lydia.coolalgebralydiathanks.utils.Half
+import cat.the.lydia.coolalgebralydiathanks.utils.N_CHANNELS_RGB
+import cat.the.lydia.coolalgebralydiathanks.utils.Util
+
+/**
+ * ColorData backed by interleaved RGB half-floats, for keeping lots of intermediate photos around
+ * at half the memory of RgbFloatData. See Half for the precision. The array is not copied, so
+ * don't modify it afterwards.
+ */
+class HalfFloatData(val values: ShortArray) : ColorData {
+    init {
+        require(values.isNotEmpty()) { "oops no colors!" }
+        require(values.size % N_CHANNELS_RGB == 0) { "expected RGB values got ${values.size}" }
+    }
+
+    override val colors: List<Color> = HalfFloatColorList(values)
+
+    override val size: Int
+        get() = values.size / N_CHANNELS_RGB
+
+    override fun copyRgbInto(dst: FloatArray, dstOffset: Int, start: Int, count: Int) {
+        require(dstOffset + count * N_CHANNELS_RGB <= dst.size)
+        val offset = start * N_CHANNELS_RGB
+        for (i in 0 until count * N_CHANNELS_RGB) {
+            dst[dstOffset + i] = Half.toFloat(values[offset + i])
+        }
+    }
+
+    override fun copyColorIntsInto(dst: IntArray, dstOffset: Int, start: Int, count: Int) {
+        require(dstOffset + count <= dst.size)
+        var n = start * N_CHANNELS_RGB
+        for (i in dstOffset until dstOffset + count) {
+            dst[i] = Util.rgb(
+                    Util.normalToU8(Half.toFloat(values[n])),
+                    Util.normalToU8(Half.toFloat(values[n + 1])),
+                    Util.normalToU8(Half.toFloat(values[n + 2]))
+            )
+            n += N_CHANNELS_RGB
+        }
+    }
+
+    override fun toString(): String = "HalfFloatData(size=$size)"
+
+    companion object {
+        /**
+         * Convert any ColorData to halves, a chunk at a time through interleaved RGB floats.
+         */
+        fun of(data: ColorData): HalfFloatData {
+            if (data is HalfFloatData) return data
+            val halves = ShortArray(data.size * N_CHANNELS_RGB)
+            val chunk = CHUNK_SIZE.coerceAtMost(data.size)
+            val buffer = FloatArray(chunk * N_CHANNELS_RGB)
+            var start = 0
+            while (start < data.size) {
+                val count = chunk.coerceAtMost(data.size - start)
+                data.copyRgbInto(buffer, 0, start, count)
+                val offset = start * N_CHANNELS_RGB
+                for (i in 0 until count * N_CHANNELS_RGB) {
+                    halves[offset + i] = Half.fromFloat(buffer[i])
+                }
+                start += count
+            }
+            return HalfFloatData(halves)
+        }
+
+        private const val CHUNK_SIZE = 1024
+    }
+}
+
+/**
+ * Get a half-float copy of a ColorData.
+ */
+fun ColorData.toHalfFloatData(): HalfFloatData = HalfFloatData.of(this)
+
+/**
+ * Store a Photo's pixels as halves, keeping its dimensions.
+ */
+fun Photo.toHalfPhoto(): Photo = Photo(HalfFloatData.of(data), width, height)
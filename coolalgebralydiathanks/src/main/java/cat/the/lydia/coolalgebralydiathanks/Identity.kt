@@ -7,25 +7,41 @@ internal var ENABLE_IDENTITY_SPECIAL_CASES = true
 /**
  * The identity function as a ColorCube. Isomorphic to IdentityColorFunc.
  */
-internal object IdentityCube : ColorCube(generateIdentityColorLattice())
+internal object IdentityCube : ColorCube(generateIdentityLatticeValues(ColorCube.N), ColorCube.N)
+
+private val identityCubes = arrayOfNulls<ColorCube>(ColorCube.MAX_N + 1)
+
+/**
+ * The identity ColorCube for any lattice size. These are created on first use and kept around.
+ */
+internal fun identityCube(n: Int): ColorCube {
+    if (n == ColorCube.N) return IdentityCube
+    require(n in ColorCube.MIN_N..ColorCube.MAX_N) { "unsupported lattice size n=$n" }
+    return synchronized(identityCubes) {
+        identityCubes[n] ?: ColorCube(generateIdentityLatticeValues(n), n)
+                .also { identityCubes[n] = it }
+    }
+}
 
 /**
- * Generate a list of Colors that acts as the identity function when interpreted as a 3d-lattice of
+ * Generate RGB values that act as the identity function when interpreted as a 3d-lattice of
  * Colors in a ColorCube.
  *
  * We are able to programmatically create this for any 3D dimensions as it is just a uniform
  * sampling of RGB space, including boundaries.
  */
-internal fun generateIdentityColorLattice(): List<Color> {
-    val id = ArrayList<Color>(ColorCube.N_COLORS)
-    val step = 1 / (ColorCube.N - 1f)
-    for (z in 0 until ColorCube.N) {
-        val b = Bounded(z * step)
-        for (y in 0 until ColorCube.N) {
-            val g = Bounded(y * step)
-            for (x in 0 until ColorCube.N) {
-                val r = Bounded(x * step)
-                id.add(Color(r, g, b))
+internal fun generateIdentityLatticeValues(dim: Int): FloatArray {
+    val id = FloatArray(dim * dim * dim * 3)
+    val step = 1 / (dim - 1f)
+    var n = 0
+    for (z in 0 until dim) {
+        val b = z * step
+        for (y in 0 until dim) {
+            val g = y * step
+            for (x in 0 until dim) {
+                id[n++] = x * step
+                id[n++] = g
+                id[n++] = b
             }
         }
     }
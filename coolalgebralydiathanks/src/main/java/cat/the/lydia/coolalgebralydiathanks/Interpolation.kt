@@ -0,0 +1,19 @@
+package cat.the.lydia.coolalgebralydiathanks
+
+/**
+ * How a ColorCube fills in colors between its lattice points.
+ */
+enum class Interpolation {
+    /**
+     * Blend the 8 corners of the local cube. This is what RS and the default CPU kernels do.
+     */
+    TRILINEAR,
+
+    /**
+     * Split the local cube into 6 tetrahedra around the neutral diagonal and blend the 4 corners
+     * of the one we're in. Half the lattice reads and fewer lerps than trilinear, and neutrals
+     * only ever see the two lattice points on the diagonal, which is why grading tools like it.
+     * CPU only.
+     */
+    TETRAHEDRAL
+}
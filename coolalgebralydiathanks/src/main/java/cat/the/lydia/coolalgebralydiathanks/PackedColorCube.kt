@@ -0,0 +1,81 @@
+package cat.the.lydia.coolalgebralydiathanks
+
+import androidx.annotation.ColorInt
+import cat.the.lydia.coolalgebralydiathanks.implementation.KotlinCpuTrilinear
+import cat.the.lydia.coolalgebralydiathanks.utils.N_CHANNELS_RGB
+import cat.the.lydia.coolalgebralydiathanks.utils.Util
+
+/**
+ * A ColorCube stored as packed ARGB_8888 ints, like the U8 LUT allocation ScriptIntrinsic3DLUT
+ * takes, for applying to 8-bit pixels without ever going through float.
+ *
+ * The fixed-point kernel is trilinear with the same corners and lerp order as the float kernels.
+ * Error bounds compared with applying the float cube to the same pixels:
+ *
+ * - Pixels are U8, so a position in the lattice is exactly origin + f / 255 with integer f. The
+ *   weights are exact and every step up to the final rounding is exact integer math.
+ * - The lattice is rounded to U8 when it's packed, which is at most 0.5 / 255 per value. The
+ *   interpolation is a convex combination so results move by at most the same amount.
+ * - The result is rounded to nearest, another 0.5 / 255.
+ *
+ * So each channel is within 1 / 255 of the float result, which means at most 1 step from rounding
+ * the float result to U8. For a cube that's already U8 (see Util.clampColorCubeToU8) the first
+ * error is gone and the two only disagree when the float result is within float error of a tie.
+ */
+class PackedColorCube internal constructor(
+        @ColorInt internal val packed: IntArray,
+        /**
+         * Lattice points per side.
+         */
+        val n: Int
+) : ColorData by ColorIntData(packed) {
+
+    init {
+        require(n in ColorCube.MIN_N..ColorCube.MAX_N) {
+            "expected n in ${ColorCube.MIN_N}..${ColorCube.MAX_N} got n=$n"
+        }
+        require(packed.size == n * n * n) {
+            "expected ${n * n * n} colors for n=$n got ${packed.size}"
+        }
+    }
+
+    constructor(cube: ColorCube) :
+            this(IntArray(cube.size).also { Util.copyColorCubeAsPackedRsColors(cube, it) }, cube.n)
+
+    /**
+     * Apply to ColorInts [from, to) in [src], writing the results to the same positions in [dst].
+     * Alpha is passed through as is. [src] and [dst] may be the same array.
+     */
+    fun apply(
+            @ColorInt src: IntArray,
+            @ColorInt dst: IntArray,
+            from: Int = 0,
+            to: Int = src.size
+    ) = KotlinCpuTrilinear.applyOnCpu(from, to) { start, end ->
+        KotlinCpuTrilinear.applyPackedCubeToColorInts(this, src, dst, start, end)
+    }
+
+    infix operator fun times(data: ColorIntData): ColorIntData =
+            ColorIntData(IntArray(data.size).also { apply(data.colorInts, it) })
+
+    /**
+     * Expand back to a float ColorCube, with the lattice rounded to U8.
+     */
+    fun toColorCube(): ColorCube =
+            ColorCube(FloatArray(size * N_CHANNELS_RGB).also { copyRgbInto(it) }, n)
+
+    override fun equals(other: Any?): Boolean = when {
+        this === other -> true
+        other !is PackedColorCube -> false
+        else -> n == other.n && packed.contentEquals(other.packed)
+    }
+
+    override fun hashCode(): Int = packed.contentHashCode()
+
+    override fun toString(): String = "PackedColorCube(n=$n)"
+}
+
+/**
+ * Pack a ColorCube as U8 ColorInts.
+ */
+fun ColorCube.toPackedColorCube(): PackedColorCube = PackedColorCube(this)
@@ -1,15 +1,138 @@
 package cat.the.lydia.coolalgebralydiathanks
 
-data class Photo(
-        override val colors: List<Color>,
+import cat.the.lydia.coolalgebralydiathanks.utils.Fingerprint
+import cat.the.lydia.coolalgebralydiathanks.utils.N_CHANNELS_RGB
+import cat.the.lydia.coolalgebralydiathanks.utils.Util
+
+/**
+ * ColorData with dimensions. The pixels can be any ColorData, so a Photo made from a Bitmap keeps
+ * its packed ColorInts, and a Photo made by a ColorFunc keeps float RGB, without ever creating
+ * Colors.
+ */
+class Photo(
+        val data: ColorData,
         val width: Int,
         val height: Int
-) : ColorData {
+) : ColorData by data {
+
+    constructor(colors: List<Color>, width: Int, height: Int) :
+            this(ColorList(colors), width, height)
 
     init {
         require(width > 0 && height > 0) { "width and height should be positive" }
-        require(colors.size == width * height) { "exact sizes please for ColorData" }
+        require(data.size == width * height) { "exact sizes please for ColorData" }
+    }
+
+    /**
+     * Quantized 64-bit fingerprint of the dimensions and pixels, for quantizedEquals() and for
+     * keying hash maps by content. Photos are big and often short-lived, so this is computed on
+     * first use and then cached.
+     */
+    val fingerprint: Long by lazy {
+        Fingerprint.combine(Fingerprint.combine(Fingerprint.of(data), width), height)
+    }
+
+    /**
+     * Photos are equal when their dimensions are equal and their pixels are within the Bounded
+     * epsilon.
+     */
+    override fun equals(other: Any?): Boolean = when {
+        this === other -> true
+        other !is Photo -> false
+        width != other.width || height != other.height -> false
+        else -> Util.sameColorData(data, other.data)
+    }
+
+    /**
+     * Only the dimensions, like ColorCube.hashCode(). Key hash maps by fingerprint to look photos
+     * up by content.
+     */
+    override fun hashCode(): Int = 31 * width + height
+
+    /**
+     * Photos with equal dimensions and quantized pixels. This agrees with fingerprint, so it
+     * returns false on a fingerprint mismatch without looking at any pixels.
+     */
+    fun quantizedEquals(other: Photo): Boolean = when {
+        this === other -> true
+        width != other.width || height != other.height -> false
+        fingerprint != other.fingerprint -> false
+        else -> Util.sameQuantizedColorData(data, other.data)
+    }
+
+    /**
+     * A w*h rectangle of this Photo starting at (x, y), as a view that shares the pixels. Nothing
+     * is copied, and ColorFuncs applied to the region only touch its pixels, so this is cheap for
+     * crops and tiles. Regions of regions still point straight at the original pixels.
+     */
+    fun region(x: Int, y: Int, w: Int, h: Int): Photo {
+        require(x >= 0 && y >= 0 && w > 0 && h > 0 && x + w <= width && y + h <= height) {
+            "region ($x, $y, $w, $h) is not inside Photo($width, $height)"
+        }
+        if (x == 0 && y == 0 && w == width && h == height) return this
+        val d = data
+        val region = when (d) {
+            is PhotoRegion -> PhotoRegion(d.source, d.stride, d.offset + y * d.stride + x, w, h)
+            else -> PhotoRegion(d, width, y * width + x, w, h)
+        }
+        return Photo(region, w, h)
     }
 
     override fun toString(): String = "Photo($width, $height)"
 }
+
+/**
+ * A rectangle of pixels in [source], which is [stride] pixels wide, starting at [offset]. Bulk
+ * copies go a row at a time straight to the source.
+ */
+internal class PhotoRegion(
+        val source: ColorData,
+        val stride: Int,
+        val offset: Int,
+        private val width: Int,
+        height: Int
+) : ColorData {
+
+    override val size: Int = width * height
+
+    override val colors: List<Color> = object : AbstractList<Color>(), RandomAccess {
+        override val size: Int
+            get() = this@PhotoRegion.size
+
+        override fun get(index: Int): Color {
+            if (index !in 0 until size) throw IndexOutOfBoundsException("index=$index size=$size")
+            return source.colors[sourceIndex(index)]
+        }
+    }
+
+    private fun sourceIndex(index: Int) = offset + (index / width) * stride + index % width
+
+    override fun copyRgbInto(dst: FloatArray, dstOffset: Int, start: Int, count: Int) {
+        require(dstOffset + count * N_CHANNELS_RGB <= dst.size)
+        forEachRun(start, count) { sourceStart, runOffset, run ->
+            source.copyRgbInto(dst, dstOffset + runOffset * N_CHANNELS_RGB, sourceStart, run)
+        }
+    }
+
+    override fun copyColorIntsInto(dst: IntArray, dstOffset: Int, start: Int, count: Int) {
+        require(dstOffset + count <= dst.size)
+        forEachRun(start, count) { sourceStart, runOffset, run ->
+            source.copyColorIntsInto(dst, dstOffset + runOffset, sourceStart, run)
+        }
+    }
+
+    /**
+     * Split [start, start + count) into runs that don't cross a row.
+     */
+    private inline fun forEachRun(start: Int, count: Int, f: (Int, Int, Int) -> Unit) {
+        var i = start
+        val end = start + count
+        while (i < end) {
+            val run = (width - i % width).coerceAtMost(end - i)
+            f(sourceIndex(i), i - start, run)
+            i += run
+        }
+    }
+
+    override fun toString(): String = "PhotoRegion(size=$size)"
+}
@@ -0,0 +1,78 @@
+package cat.the.lydia.coolalgebralydiathanks
+
+import cat.the.lydia.coolalgebralydiathanks.utils.N_CHANNELS_RGB
+import cat.the.lydia.coolalgebralydiathanks.utils.Util
+
+/**
+ * ColorData stored as structure-of-arrays, with red, green and blue each in their own FloatArray.
+ *
+ * Pointwise operations on planar data are plain counted loops over primitive arrays with no
+ * interleaving, so HotSpot and ART are free to vectorize them. Use this for big batch jobs that
+ * are memory-bandwidth bound. The arrays are not copied, so don't modify them afterwards.
+ */
+class PlanarColorData(val r: FloatArray, val g: FloatArray, val b: FloatArray) : ColorData {
+    init {
+        require(r.isNotEmpty()) { "oops no colors!" }
+        require(r.size == g.size && r.size == b.size) {
+            "expected planes of the same size got ${r.size}, ${g.size}, ${b.size}"
+        }
+    }
+
+    constructor(size: Int) : this(FloatArray(size), FloatArray(size), FloatArray(size))
+
+    override val colors: List<Color> = PlanarColorList(r, g, b)
+
+    override val size: Int
+        get() = r.size
+
+    override fun copyRgbInto(dst: FloatArray, dstOffset: Int, start: Int, count: Int) {
+        require(dstOffset + count * N_CHANNELS_RGB <= dst.size)
+        var n = dstOffset
+        for (i in start until start + count) {
+            dst[n] = r[i]
+            dst[n + 1] = g[i]
+            dst[n + 2] = b[i]
+            n += N_CHANNELS_RGB
+        }
+    }
+
+    override fun copyColorIntsInto(dst: IntArray, dstOffset: Int, start: Int, count: Int) {
+        Util.copyPlanarAsColorInts(this, dst, dstOffset, start, count)
+    }
+
+    override fun toString(): String = "PlanarColorData(size=$size)"
+
+    companion object {
+        /**
+         * Split any ColorData into planes. This goes through interleaved RGB a chunk at a time, so
+         * primitive-backed ColorData never creates Colors.
+         */
+        fun of(data: ColorData): PlanarColorData {
+            if (data is PlanarColorData) return data
+            val planar = PlanarColorData(data.size)
+            val chunk = CHUNK_SIZE.coerceAtMost(data.size)
+            val buffer = FloatArray(chunk * N_CHANNELS_RGB)
+            var start = 0
+            while (start < data.size) {
+                val count = chunk.coerceAtMost(data.size - start)
+                data.copyRgbInto(buffer, 0, start, count)
+                var n = 0
+                for (i in start until start + count) {
+                    planar.r[i] = buffer[n]
+                    planar.g[i] = buffer[n + 1]
+                    planar.b[i] = buffer[n + 2]
+                    n += N_CHANNELS_RGB
+                }
+                start += count
+            }
+            return planar
+        }
+
+        private const val CHUNK_SIZE = 1024
+    }
+}
+
+/**
+ * Get the planes of a ColorData.
+ */
+fun ColorData.toPlanarColorData(): PlanarColorData = PlanarColorData.of(this)
@@ -0,0 +1,109 @@
+package cat.the.lydia.coolalgebralydiathanks
+
+import cat.the.lydia.coolalgebralydiathanks.implementation.KotlinCpuTrilinear
+import cat.the.lydia.coolalgebralydiathanks.utils.N_CHANNELS_RGB
+
+/**
+ * A ColorCube compiled to one trilinear polynomial per lattice cell.
+ *
+ * Inside a cell trilinear interpolation is
+ *
+ *     c0 + c1 x + c2 y + c3 z + c4 xy + c5 xz + c6 yz + c7 xyz
+ *
+ * in the fractions x, y and z, with coefficients that only depend on the cell's 8 corners. We work
+ * those out once and store them cell after cell in one FloatArray, 8 coefficients for red, then
+ * green, then blue. A lookup then reads 24 floats in a row from one place instead of 8 corners
+ * spread over 4 rows and planes of the lattice, and evaluates with 7 multiply-adds per channel.
+ *
+ * The catch is memory. There are (n - 1)^3 cells of 24 floats against n^3 lattice points of 3, so
+ * about 8x the cube, which is 24MB for a 65^3 cube but only 1.5MB for the default 17^3.
+ *
+ * Results are the same interpolation as the cube, with coefficients worked out in double, so
+ * they're within Bounded epsilon of the reference kernel. They aren't bit for bit the same since
+ * the reference lerp snaps to a corner when a fraction is within epsilon of 0 or 1.
+ */
+class PolynomialColorCube(val cube: ColorCube) : ColorFunc {
+
+    /**
+     * Cells per side.
+     */
+    val cells: Int = cube.n - 1
+
+    internal val coefficients: FloatArray = compile(cube)
+
+    override fun apply(color: Color): Color {
+        val rgb = floatArrayOf(color.r.value, color.g.value, color.b.value)
+        KotlinCpuTrilinear.applyPolynomialCubeToRgb(this, rgb, rgb)
+        return Color(Bounded(rgb[0]), Bounded(rgb[1]), Bounded(rgb[2]))
+    }
+
+    override fun apply(colors: List<Color>): List<Color> =
+            KotlinCpuTrilinear.applyToColorsAsRgb(colors) { apply(it, it) }
+
+    override fun apply(src: FloatArray, dst: FloatArray, from: Int, to: Int) =
+            KotlinCpuTrilinear.applyOnCpu(from, to) { start, end ->
+                KotlinCpuTrilinear.applyPolynomialCubeToRgb(this, src, dst, start, end)
+            }
+
+    /**
+     * The cube we were compiled from.
+     */
+    override fun toColorCube(): ColorCube = cube
+
+    override fun isIdentity(): Boolean = false
+
+    override fun equals(other: Any?): Boolean = other is PolynomialColorCube && cube == other.cube
+
+    override fun hashCode(): Int = cube.hashCode()
+
+    override fun toString(): String = "PolynomialColorCube(n=${cube.n})"
+
+    companion object {
+        /**
+         * Floats per cell, 8 coefficients for each channel.
+         */
+        const val CELL_SIZE = 8 * N_CHANNELS_RGB
+
+        private fun compile(cube: ColorCube): FloatArray {
+            val n = cube.n
+            val cells = n - 1
+            val values = cube.values
+            val stepY = n * N_CHANNELS_RGB
+            val stepZ = n * stepY
+            val coefficients = FloatArray(cells * cells * cells * CELL_SIZE)
+            var cell = 0
+            for (z in 0 until cells) for (y in 0 until cells) for (x in 0 until cells) {
+                val i000 = x * N_CHANNELS_RGB + y * stepY + z * stepZ
+                for (channel in 0 until N_CHANNELS_RGB) {
+                    val i = i000 + channel
+                    // corners named by their x, y and z offsets
+                    val c000 = values[i].toDouble()
+                    val c100 = values[i + N_CHANNELS_RGB].toDouble()
+                    val c010 = values[i + stepY].toDouble()
+                    val c110 = values[i + stepY + N_CHANNELS_RGB].toDouble()
+                    val c001 = values[i + stepZ].toDouble()
+                    val c101 = values[i + stepZ + N_CHANNELS_RGB].toDouble()
+                    val c011 = values[i + stepZ + stepY].toDouble()
+                    val c111 = values[i + stepZ + stepY + N_CHANNELS_RGB].toDouble()
+                    val c = cell + channel * 8
+                    coefficients[c] = c000.toFloat()
+                    coefficients[c + 1] = (c100 - c000).toFloat()
+                    coefficients[c + 2] = (c010 - c000).toFloat()
+                    coefficients[c + 3] = (c001 - c000).toFloat()
+                    coefficients[c + 4] = (c110 - c100 - c010 + c000).toFloat()
+                    coefficients[c + 5] = (c101 - c100 - c001 + c000).toFloat()
+                    coefficients[c + 6] = (c011 - c010 - c001 + c000).toFloat()
+                    coefficients[c + 7] =
+                            (c111 - c110 - c101 - c011 + c100 + c010 + c001 - c000).toFloat()
+                }
+                cell += CELL_SIZE
+            }
+            return coefficients
+        }
+    }
+}
+
+/**
+ * Compile a ColorCube to per-cell polynomials.
+ */
+fun ColorCube.toPolynomialColorCube(): PolynomialColorCube = PolynomialColorCube(this)
@@ -0,0 +1,17 @@
+package cat.the.lydia.coolalgebralydiathanks
+
+/**
+ * How close to the CPU reference a result has to be, which decides the backends a call can use.
+ */
+enum class Precision {
+    /**
+     * Identical to KotlinCpuTrilinear.applyCubeToRgb(), bit for bit. CPU only.
+     */
+    EXACT,
+
+    /**
+     * Anything that counts as the same colors, i.e. within the Bounded epsilon. This lets RS run
+     * with rs_fp_relaxed.
+     */
+    RELAXED
+}
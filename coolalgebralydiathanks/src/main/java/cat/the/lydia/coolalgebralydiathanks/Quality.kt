@@ -0,0 +1,26 @@
+package cat.the.lydia.coolalgebralydiathanks
+
+/**
+ * How exact applying a ColorFunc needs to be. Interactive paths can ask for a cheaper answer
+ * while scrubbing and follow up with EXACT.
+ *
+ * ColorCube.errorBound() gives the most each level can be off from EXACT for a given cube.
+ */
+enum class Quality {
+    /**
+     * The real thing.
+     */
+    EXACT,
+
+    /**
+     * Trilinear on a smaller copy of the cube, at most ColorCube.PREVIEW_N per side. Cheaper to
+     * compose and friendlier to the cache, and exact wherever the cube is close to trilinear
+     * between the points we dropped.
+     */
+    DOWNSAMPLED,
+
+    /**
+     * Just the nearest lattice point, no interpolation at all. Banding is to be expected.
+     */
+    NEAREST
+}
@@ -0,0 +1,39 @@
+package cat.the.lydia.coolalgebralydiathanks
+
+import cat.the.lydia.coolalgebralydiathanks.utils.N_CHANNELS_RGB
+import cat.the.lydia.coolalgebralydiathanks.utils.Util
+
+/**
+ * ColorData backed by interleaved RGB floats, in the same layout as a ColorCube's values and our
+ * F32_3 allocations. The array is not copied, so don't modify it afterwards.
+ */
+class RgbFloatData(val values: FloatArray) : ColorData {
+    init {
+        require(values.isNotEmpty()) { "oops no colors!" }
+        require(values.size % N_CHANNELS_RGB == 0) { "expected RGB values got ${values.size}" }
+    }
+
+    override val colors: List<Color> = RgbFloatColorList(values)
+
+    override val size: Int
+        get() = values.size / N_CHANNELS_RGB
+
+    override fun copyRgbInto(dst: FloatArray, dstOffset: Int, start: Int, count: Int) {
+        values.copyInto(dst, dstOffset, start * N_CHANNELS_RGB, (start + count) * N_CHANNELS_RGB)
+    }
+
+    override fun copyColorIntsInto(dst: IntArray, dstOffset: Int, start: Int, count: Int) {
+        require(dstOffset + count <= dst.size)
+        var n = start * N_CHANNELS_RGB
+        for (i in dstOffset until dstOffset + count) {
+            dst[i] = Util.rgb(
+                    Util.normalToU8(values[n]),
+                    Util.normalToU8(values[n + 1]),
+                    Util.normalToU8(values[n + 2])
+            )
+            n += N_CHANNELS_RGB
+        }
+    }
+
+    override fun toString(): String = "RgbFloatData(size=$size)"
+}
@@ -0,0 +1,133 @@
+package cat.the.lydia.coolalgebralydiathanks
+
+import cat.the.lydia.coolalgebralydiathanks.implementation.KotlinCpuTrilinear
+import cat.the.lydia.coolalgebralydiathanks.utils.N_CHANNELS_RGB
+
+/**
+ * A per-channel 1D shaper followed by a 3D ColorCube, like the shaper + lattice pairs in .cube
+ * files made for log footage.
+ *
+ * The shaper moves the lattice points to where the function needs them. For example a shaper like
+ * a log or gamma curve puts many more lattice points in the shadows than a plain cube of the same
+ * size, so a 17^3 lattice behind the right shaper can be as accurate as a plain 65^3 one, at a
+ * fraction of the memory.
+ *
+ * Each shaper channel is a table of values in [0,1] evenly spaced over the input, interpolated
+ * linearly, and must be non-decreasing so we can invert it when baking. The CPU kernel shapes
+ * and interpolates in one pass.
+ *
+ * f * shaped keeps the shaper and applies f to the lattice, which is exact at every lattice point.
+ * shaped * g gives a plain cube like any other ColorFunc, so use compose() to keep the shaper.
+ * toColorCube() drops the shaper and gives a plain cube of the default size, which loses the
+ * extra accuracy.
+ */
+class ShapedColorCube(
+        red: FloatArray,
+        green: FloatArray,
+        blue: FloatArray,
+        val cube: ColorCube
+) : ColorFunc {
+
+    /**
+     * One shaper curve for all three channels.
+     */
+    constructor(shaper: FloatArray, cube: ColorCube) : this(shaper, shaper, shaper, cube)
+
+    internal val red: FloatArray = red.copyOf()
+    internal val green: FloatArray = green.copyOf()
+    internal val blue: FloatArray = blue.copyOf()
+
+    init {
+        for (shaper in listOf(this.red, this.green, this.blue)) {
+            require(shaper.size >= 2) { "expected at least 2 shaper points got ${shaper.size}" }
+            require(shaper.all { it in 0f..1f }) { "expected shaper values in [0,1]" }
+            require((1 until shaper.size).all { shaper[it] >= shaper[it - 1] }) {
+                "expected a non-decreasing shaper"
+            }
+        }
+    }
+
+    override fun apply(color: Color): Color {
+        val rgb = floatArrayOf(color.r.value, color.g.value, color.b.value)
+        KotlinCpuTrilinear.applyShapedCubeToRgb(this, rgb, rgb)
+        return Color(Bounded(rgb[0]), Bounded(rgb[1]), Bounded(rgb[2]))
+    }
+
+    override fun apply(colors: List<Color>): List<Color> =
+            KotlinCpuTrilinear.applyToColorsAsRgb(colors) { apply(it, it) }
+
+    override fun apply(src: FloatArray, dst: FloatArray, from: Int, to: Int) =
+            KotlinCpuTrilinear.applyOnCpu(from, to) { start, end ->
+                KotlinCpuTrilinear.applyShapedCubeToRgb(this, src, dst, start, end)
+            }
+
+    override fun isIdentity(): Boolean = false
+
+    override fun toColorCube(): ColorCube = applyToLattice(IdentityCube)
+
+    /**
+     * This after [g], baked behind our shaper. Unlike this * g, which gives a plain cube, this
+     * keeps the accuracy of the shaper as long as g's results are well sampled by it.
+     */
+    fun compose(g: ColorFunc): ShapedColorCube = withLattice { values ->
+        g.apply(values, values)
+        apply(values, values)
+    }
+
+    /**
+     * A ShapedColorCube with our shaper, and a lattice made by [f] from the colors that our shaper
+     * maps to our lattice points, as RGB floats in lattice order. That samples whatever f does
+     * exactly where we will interpolate.
+     */
+    private inline fun withLattice(f: (FloatArray) -> Unit): ShapedColorCube {
+        val values = ColorCube.identity(cube.n).values.copyOf()
+        for (i in values.indices step N_CHANNELS_RGB) {
+            values[i] = invert(red, values[i])
+            values[i + 1] = invert(green, values[i + 1])
+            values[i + 2] = invert(blue, values[i + 2])
+        }
+        f(values)
+        return ShapedColorCube(red, green, blue, ColorCube(values, cube.n))
+    }
+
+    override fun toString(): String = "ShapedColorCube(shaper=${red.size}, n=${cube.n})"
+
+    companion object {
+        const val DEFAULT_SHAPER_SIZE = 1024
+
+        /**
+         * Bake [f] into an n^3 cube behind a shaper sampled from [shaper], which should be
+         * non-decreasing from [0,1] to [0,1].
+         */
+        fun bake(
+                f: ColorFunc,
+                shaper: (Float) -> Float,
+                n: Int = ColorCube.N,
+                shaperSize: Int = DEFAULT_SHAPER_SIZE
+        ): ShapedColorCube {
+            val table = FloatArray(shaperSize) { shaper(it / (shaperSize - 1f)).coerceIn(0f, 1f) }
+            return ShapedColorCube(table, ColorCube.identity(n)).withLattice { f.apply(it, it) }
+        }
+
+        /**
+         * The input that a shaper maps to [v], by binary search and linear interpolation. Flat
+         * parts of the shaper give their first input.
+         */
+        internal fun invert(shaper: FloatArray, v: Float): Float {
+            val last = shaper.size - 1
+            if (v <= shaper[0]) return 0f
+            if (v >= shaper[last]) return 1f
+            // largest i with shaper[i] <= v, which is below last
+            var lo = 0
+            var hi = last
+            while (hi - lo > 1) {
+                val mid = (lo + hi) ushr 1
+                if (shaper[mid] <= v) lo = mid else hi = mid
+            }
+            val a = shaper[lo]
+            val b = shaper[lo + 1]
+            val t = if (b > a) (v - a) / (b - a) else 0f
+            return (lo + t) / last
+        }
+    }
+}
@@ -6,6 +6,20 @@ package cat.the.lydia.coolalgebralydiathanks
 class SimpleColorFunc(val f: (Color) -> Color) : ColorFunc {
     override fun apply(color: Color): Color = f(color)
     override fun apply(colors: List<Color>): List<Color> = colors.map(f)
+
+    /**
+     * One Color in and one out per pixel, but no lists.
+     */
+    override fun apply(src: FloatArray, dst: FloatArray, from: Int, to: Int) {
+        for (i in from until to) {
+            val n = i * 3
+            val result = f(Color(Bounded(src[n]), Bounded(src[n + 1]), Bounded(src[n + 2])))
+            dst[n] = result.r.value
+            dst[n + 1] = result.g.value
+            dst[n + 2] = result.b.value
+        }
+    }
+
     override fun isIdentity(): Boolean = false
     override fun toColorCube(): ColorCube = ColorCube(apply(IdentityCube.colors))
 }
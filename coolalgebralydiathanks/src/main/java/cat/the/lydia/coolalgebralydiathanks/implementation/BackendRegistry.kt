@@ -0,0 +1,187 @@
+package cat.the.lydia.coolalgebralydiathanks.implementation
+
+import cat.the.lydia.coolalgebralydiathanks.Color
+import cat.the.lydia.coolalgebralydiathanks.ColorCube
+import cat.the.lydia.coolalgebralydiathanks.Precision
+import cat.the.lydia.coolalgebralydiathanks.utils.Util
+import java.io.File
+import java.util.Properties
+import java.util.concurrent.CopyOnWriteArrayList
+import kotlin.random.Random
+
+/**
+ * Picks a CubeBackend for each call by input size and precision.
+ *
+ * Backends are kept in order from lightest to heaviest. Each one has a minimum input size in the
+ * profile, and a call goes to the heaviest available backend with the right precision whose
+ * minimum it reaches. The first usable backend takes anything smaller, so there's always one.
+ *
+ * The minimums can come from the defaults, from calibrate() which times every backend on this
+ * device, or from a profile saved by an earlier calibration.
+ */
+class BackendRegistry(
+        backends: List<CubeBackend> =
+                listOf(SequentialCpuBackend, ParallelCpuBackend, DeviceBackend),
+        @Volatile var profile: BackendProfile = BackendProfile.DEFAULT
+) {
+    private val backends = CopyOnWriteArrayList(backends)
+
+    val registered: List<CubeBackend>
+        get() = backends.toList()
+
+    /**
+     * Add a backend after all the others, i.e. heavier than anything so far. It won't be picked
+     * until the profile has a minimum size for it.
+     */
+    fun register(backend: CubeBackend) {
+        require(backends.none { it.name == backend.name }) { "already have ${backend.name}" }
+        backends += backend
+    }
+
+    fun select(size: Int, precision: Precision = Precision.RELAXED): CubeBackend {
+        val profile = profile
+        var chosen: CubeBackend? = null
+        for (backend in backends) {
+            if (!backend.isAvailable() || !satisfies(backend, precision)) continue
+            if (chosen == null || size >= profile.minSize(backend.name)) chosen = backend
+        }
+        return chosen ?: throw IllegalStateException("no $precision backend available")
+    }
+
+    /**
+     * True if a CPU kernel should run [size] colors in parallel. The CPU-only kernels, like
+     * tetrahedral and packed cubes, use this to choose between their sequential and fork/join
+     * versions.
+     */
+    fun useParallelCpu(size: Int): Boolean = size >= profile.minSize(ParallelCpuBackend.name)
+
+    fun apply(
+            cube: ColorCube,
+            src: FloatArray,
+            dst: FloatArray,
+            from: Int,
+            to: Int,
+            precision: Precision = Precision.RELAXED
+    ) = select(to - from, precision).apply(cube, src, dst, from, to)
+
+    fun apply(
+            cube: ColorCube,
+            colors: List<Color>,
+            precision: Precision = Precision.RELAXED
+    ): List<Color> = select(colors.size, precision).apply(cube, colors)
+
+    /**
+     * Time every available backend at each of [sizes], and use the results as the profile.
+     *
+     * A backend's minimum is the smallest size from which it beats every lighter backend at every
+     * larger size we measured, or never if it doesn't win at the largest. The first backend always
+     * starts at 0, and backends that aren't available keep what the profile already had.
+     */
+    fun calibrate(
+            sizes: List<Int> = CALIBRATION_SIZES,
+            cube: ColorCube = Util.randomColorCube()
+    ): BackendProfile {
+        val available = backends.filter { it.isAvailable() }
+        val times = available.map { backend -> sizes.map { size -> time(backend, cube, size) } }
+        val minSizes = HashMap(profile.minSizes)
+        available.forEachIndexed { i, backend ->
+            var minSize = if (i == 0) 0 else NEVER
+            if (i > 0) {
+                for (s in sizes.indices.reversed()) {
+                    if ((0 until i).all { times[i][s] < times[it][s] }) minSize = sizes[s]
+                    else break
+                }
+            }
+            minSizes[backend.name] = minSize
+        }
+        return BackendProfile(minSizes).also { profile = it }
+    }
+
+    /**
+     * Load the profile from [file] if there is one, otherwise calibrate and save it there. Meant
+     * to be called once at startup, off the main thread.
+     */
+    fun calibrateOrLoad(file: File): BackendProfile =
+            if (file.exists()) BackendProfile.load(file).also { profile = it }
+            else calibrate().also { it.save(file) }
+
+    /**
+     * Nanoseconds per call of [backend] on [size] random colors, best of a few runs, each long
+     * enough to be measurable.
+     */
+    private fun time(backend: CubeBackend, cube: ColorCube, size: Int): Long {
+        val src = FloatArray(size * 3) { Random.nextFloat() }
+        val dst = FloatArray(src.size)
+        val calls = (MIN_COLORS_PER_RUN / size).coerceAtLeast(1)
+        backend.apply(cube, src, dst, 0, size)
+        var best = Long.MAX_VALUE
+        repeat(RUNS) {
+            val start = System.nanoTime()
+            repeat(calls) { backend.apply(cube, src, dst, 0, size) }
+            best = minOf(best, (System.nanoTime() - start) / calls)
+        }
+        return best
+    }
+
+    private fun satisfies(backend: CubeBackend, precision: Precision): Boolean =
+            precision == Precision.RELAXED || backend.precision == Precision.EXACT
+
+    companion object {
+        /**
+         * The registry ColorCube and friends use.
+         */
+        val default = BackendRegistry()
+
+        val CALIBRATION_SIZES: List<Int> = (3..10).map { 1 shl (2 * it) }
+
+        internal const val NEVER = Int.MAX_VALUE
+        private const val RUNS = 3
+        private const val MIN_COLORS_PER_RUN = 1 shl 16
+    }
+}
+
+/**
+ * The minimum input size for each backend, by name. Backends that aren't in here are never picked
+ * over a lighter one.
+ */
+class BackendProfile(minSizes: Map<String, Int>) {
+
+    val minSizes: Map<String, Int> = HashMap(minSizes)
+
+    fun minSize(name: String): Int = minSizes[name] ?: BackendRegistry.NEVER
+
+    /**
+     * Save as a properties file, one backend per line.
+     */
+    fun save(file: File) {
+        val properties = Properties()
+        minSizes.forEach { (name, size) -> properties.setProperty(name, size.toString()) }
+        file.outputStream().use { properties.store(it, "minimum input size per cube backend") }
+    }
+
+    override fun equals(other: Any?): Boolean =
+            other is BackendProfile && minSizes == other.minSizes
+
+    override fun hashCode(): Int = minSizes.hashCode()
+
+    override fun toString(): String = "BackendProfile($minSizes)"
+
+    companion object {
+        /**
+         * Roughly where fork/join starts paying off, and where RS is worth the copies, on the
+         * phones we tried. Calibrate for anything better.
+         */
+        val DEFAULT = BackendProfile(mapOf(
+                SequentialCpuBackend.name to 0,
+                ParallelCpuBackend.name to 4096,
+                DeviceBackend.name to 16384
+        ))
+
+        fun load(file: File): BackendProfile {
+            val properties = Properties()
+            file.inputStream().use { properties.load(it) }
+            return BackendProfile(properties.stringPropertyNames()
+                    .associateWith { properties.getProperty(it).toInt() })
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package cat.the.lydia.coolalgebralydiathanks.implementation
+
+import cat.the.lydia.coolalgebralydiathanks.Color
+import cat.the.lydia.coolalgebralydiathanks.ColorCube
+import cat.the.lydia.coolalgebralydiathanks.Precision
+import cat.the.lydia.coolalgebralydiathanks.rs.RsFriend
+
+/**
+ * Something that can apply a ColorCube to a lot of colors. A BackendRegistry picks one for each
+ * call based on the size of the input and the precision it needs.
+ */
+interface CubeBackend {
+    /**
+     * Unique name, used as the key in a BackendProfile.
+     */
+    val name: String
+
+    val precision: Precision
+
+    /**
+     * False if this backend can't run right now, e.g. RS before RsFriend.init().
+     */
+    fun isAvailable(): Boolean
+
+    /**
+     * Apply to colors [from, to) stored as interleaved RGB floats, writing the results to the same
+     * positions in dst. src and dst may be the same array.
+     */
+    fun apply(cube: ColorCube, src: FloatArray, dst: FloatArray, from: Int, to: Int)
+
+    /**
+     * Apply to a list of colors. The default goes through RGB floats.
+     */
+    fun apply(cube: ColorCube, colors: List<Color>): List<Color> =
+            KotlinCpuTrilinear.applyToColorsAsRgb(colors) { apply(cube, it, it, 0, colors.size) }
+}
+
+/**
+ * The reference kernel on the calling thread. Always available, and the cheapest for small inputs.
+ */
+object SequentialCpuBackend : CubeBackend {
+    override val name: String = "cpu"
+    override val precision: Precision = Precision.EXACT
+    override fun isAvailable(): Boolean = true
+
+    override fun apply(cube: ColorCube, src: FloatArray, dst: FloatArray, from: Int, to: Int) =
+            KotlinCpuTrilinear.applyCubeToRgb(cube, src, dst, from, to)
+}
+
+/**
+ * The reference kernel with fork/join over Util.forkJoinPool. Same results as sequential.
+ */
+object ParallelCpuBackend : CubeBackend {
+    override val name: String = "cpu-parallel"
+    override val precision: Precision = Precision.EXACT
+    override fun isAvailable(): Boolean = true
+
+    override fun apply(cube: ColorCube, src: FloatArray, dst: FloatArray, from: Int, to: Int) =
+            KotlinCpuTrilinear.applyCubeToRgbForkJoin(cube, src, dst, from = from, to = to)
+
+    override fun apply(cube: ColorCube, colors: List<Color>): List<Color> =
+            KotlinCpuTrilinear.applyCubeToColorsInParallel(cube, colors)
+}
+
+/**
+ * lut3d.rs through RsFriend, once it has been initialized. RsFriend shares its allocations between
+ * calls, so calls are serialized.
+ */
+object DeviceBackend : CubeBackend {
+    override val name: String = "renderscript"
+    override val precision: Precision = Precision.RELAXED
+    override fun isAvailable(): Boolean = RsFriend.initialized
+
+    override fun apply(cube: ColorCube, src: FloatArray, dst: FloatArray, from: Int, to: Int) =
+            synchronized(RsFriend) { RsFriend.applyColorCubeToRgb(cube, src, dst, from, to) }
+
+    override fun apply(cube: ColorCube, colors: List<Color>): List<Color> =
+            synchronized(RsFriend) { RsFriend.applyColorCubeToColors(cube, colors) }
+}
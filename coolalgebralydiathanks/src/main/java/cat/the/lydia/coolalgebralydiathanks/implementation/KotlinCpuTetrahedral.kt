@@ -0,0 +1,135 @@
+package cat.the.lydia.coolalgebralydiathanks.implementation
+
+import cat.the.lydia.coolalgebralydiathanks.Bounded
+import cat.the.lydia.coolalgebralydiathanks.Color
+import cat.the.lydia.coolalgebralydiathanks.ColorCube
+import cat.the.lydia.coolalgebralydiathanks.utils.N_CHANNELS_RGB
+import cat.the.lydia.coolalgebralydiathanks.utils.Util
+import java.util.concurrent.ForkJoinPool
+
+/**
+ * CPU implementation of ColorCube application with tetrahedral interpolation.
+ *
+ * We find the local cube exactly like KotlinCpuTrilinear does. The local cube splits into 6
+ * tetrahedra that all share the c000 to c111 diagonal, and which one we're in only depends on the
+ * order of the local offsets. Sorting them as hi >= mid >= lo, the result is
+ *
+ *     c0 + (c1 - c0) * hi + (c2 - c1) * mid + (c3 - c2) * lo
+ *
+ * where c0 = c000, c3 = c111, and c1 and c2 are the corners we pass walking from one to the other
+ * along the largest offset first. So that's 4 lattice reads and 3 multiply-adds per channel,
+ * instead of 8 reads and 7 lerps.
+ *
+ * Like trilinear this reproduces the lattice points and any affine ColorFunc, so the two only
+ * differ inside cells where the cube is curved.
+ */
+object KotlinCpuTetrahedral {
+
+    /**
+     * Apply a ColorCube to a Color.
+     */
+    fun applyCubeToColor(cube: ColorCube, color: Color): Color {
+        val rgb = floatArrayOf(color.r.value, color.g.value, color.b.value)
+        applyCubeToRgb(cube, rgb, rgb)
+        return Color(Bounded(rgb[0]), Bounded(rgb[1]), Bounded(rgb[2]))
+    }
+
+    /**
+     * Apply a ColorCube to a list of colors sequentially.
+     */
+    fun applyCubeToColors(cube: ColorCube, colors: List<Color>): List<Color> =
+            KotlinCpuTrilinear.applyToColorsAsRgb(colors) { applyCubeToRgb(cube, it, it) }
+
+    /**
+     * Apply a ColorCube to colors [from, to) stored as interleaved RGB floats, writing the results
+     * to the same positions in dst. src and dst may be the same array. Nothing is allocated per
+     * color.
+     */
+    fun applyCubeToRgb(
+            cube: ColorCube,
+            src: FloatArray,
+            dst: FloatArray,
+            from: Int = 0,
+            to: Int = src.size / N_CHANNELS_RGB
+    ) {
+        val values = cube.values
+        val last = cube.n - 1
+        val scale = last.toFloat()
+        val stepX = N_CHANNELS_RGB
+        val stepY = cube.n * N_CHANNELS_RGB
+        val stepZ = cube.n * stepY
+        for (i in from until to) {
+            val c = i * N_CHANNELS_RGB
+            val x = scale * src[c]
+            val y = scale * src[c + 1]
+            val z = scale * src[c + 2]
+
+            val x0 = KotlinCpuTrilinear.latticeOrigin(x, last)
+            val dx = KotlinCpuTrilinear.latticeFraction(x, x0)
+            val y0 = KotlinCpuTrilinear.latticeOrigin(y, last)
+            val dy = KotlinCpuTrilinear.latticeFraction(y, y0)
+            val z0 = KotlinCpuTrilinear.latticeOrigin(z, last)
+            val dz = KotlinCpuTrilinear.latticeFraction(z, z0)
+
+            // pick the tetrahedron: steps to the two middle corners, and the sorted offsets
+            val step1: Int
+            val step2: Int
+            val hi: Float
+            val mid: Float
+            val lo: Float
+            if (dx >= dy) {
+                when {
+                    dy >= dz -> {
+                        step1 = stepX; step2 = stepX + stepY; hi = dx; mid = dy; lo = dz
+                    }
+                    dx >= dz -> {
+                        step1 = stepX; step2 = stepX + stepZ; hi = dx; mid = dz; lo = dy
+                    }
+                    else -> {
+                        step1 = stepZ; step2 = stepX + stepZ; hi = dz; mid = dx; lo = dy
+                    }
+                }
+            } else {
+                when {
+                    dz >= dy -> {
+                        step1 = stepZ; step2 = stepY + stepZ; hi = dz; mid = dy; lo = dx
+                    }
+                    dz >= dx -> {
+                        step1 = stepY; step2 = stepY + stepZ; hi = dy; mid = dz; lo = dx
+                    }
+                    else -> {
+                        step1 = stepY; step2 = stepX + stepY; hi = dy; mid = dx; lo = dz
+                    }
+                }
+            }
+
+            val i0 = x0 * stepX + y0 * stepY + z0 * stepZ
+            val i1 = i0 + step1
+            val i2 = i0 + step2
+            val i3 = i0 + stepX + stepY + stepZ
+            for (ch in 0 until N_CHANNELS_RGB) {
+                val c0 = values[i0 + ch]
+                val c1 = values[i1 + ch]
+                val c2 = values[i2 + ch]
+                val c3 = values[i3 + ch]
+                dst[c + ch] = c0 + (c1 - c0) * hi + (c2 - c1) * mid + (c3 - c2) * lo
+            }
+        }
+    }
+
+    /**
+     * Apply a ColorCube to interleaved RGB floats [from, to) with fork/join, writing straight into
+     * dst.
+     */
+    fun applyCubeToRgbForkJoin(
+            cube: ColorCube,
+            src: FloatArray,
+            dst: FloatArray,
+            pool: ForkJoinPool = Util.forkJoinPool,
+            from: Int = 0,
+            to: Int = src.size / N_CHANNELS_RGB,
+            threshold: Int = KotlinCpuTrilinear.forkJoinThreshold(to - from, pool.parallelism)
+    ) = KotlinCpuTrilinear.forkJoin(pool, from, to, threshold) { start, end ->
+        applyCubeToRgb(cube, src, dst, start, end)
+    }
+}
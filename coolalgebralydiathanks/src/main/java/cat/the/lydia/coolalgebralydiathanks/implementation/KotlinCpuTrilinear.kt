@@ -1,12 +1,23 @@
 package cat.the.lydia.coolalgebralydiathanks.implementation
 
+import androidx.annotation.ColorInt
 import cat.the.lydia.coolalgebralydiathanks.Bounded
+import cat.the.lydia.coolalgebralydiathanks.BufferColorData
 import cat.the.lydia.coolalgebralydiathanks.Color
 import cat.the.lydia.coolalgebralydiathanks.ColorCube
+import cat.the.lydia.coolalgebralydiathanks.DO_CELL_MAJOR_3DLUT
+import cat.the.lydia.coolalgebralydiathanks.HalfColorCube
+import cat.the.lydia.coolalgebralydiathanks.PackedColorCube
+import cat.the.lydia.coolalgebralydiathanks.PlanarColorData
+import cat.the.lydia.coolalgebralydiathanks.PolynomialColorCube
+import cat.the.lydia.coolalgebralydiathanks.RgbFloatColorList
+import cat.the.lydia.coolalgebralydiathanks.ShapedColorCube
+import cat.the.lydia.coolalgebralydiathanks.utils.Half
+import cat.the.lydia.coolalgebralydiathanks.utils.N_CHANNELS_RGB
 import cat.the.lydia.coolalgebralydiathanks.utils.Util
-import java.util.concurrent.Callable
-import java.util.concurrent.ExecutorService
-import java.util.concurrent.Future
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
+import kotlin.math.abs
 
 /**
  * CPU reference implementation of ColorCube application to ColorData. This does 3D-lookup on a
@@ -18,7 +29,8 @@ import java.util.concurrent.Future
 object KotlinCpuTrilinear {
 
     /**
-     * Apply a ColorCube to a Color.
+     * Apply a ColorCube to a Color. This is the reference path, which spells out each step with
+     * small objects. Everything else should give identical results.
      */
     fun applyCubeToColor(
             cube: ColorCube,
@@ -26,46 +38,791 @@ object KotlinCpuTrilinear {
     ): Color = trilinearInterpolateColor(cube, color)
 
     /**
-     * Apply a ColorCube to a list of colors sequentially.
+     * Apply a ColorCube to a list of colors sequentially. This goes through the allocation-free
+     * RGB kernel, so the only Colors created are the results.
      */
     fun applyCubeToColors(
             cube: ColorCube,
             colors: List<Color>
-    ): List<Color> = colors.map { trilinearInterpolateColor(cube, it) }
+    ): List<Color> = applyToColorsAsRgb(colors) { applyCubeToRgb(cube, it, it) }
 
     /**
-     * Apply a ColorCube to a list of colors in parallel, for when you happen to have an
-     * ExecutorService lying around, and you're trying to try.
+     * Apply an RGB float kernel to a list of colors, by copying them into one float array that
+     * [kernel] transforms in place. The only Colors created are the results.
+     */
+    internal inline fun applyToColorsAsRgb(
+            colors: List<Color>,
+            kernel: (FloatArray) -> Unit
+    ): List<Color> {
+        val values = Util.colorsToFloatArray(colors)
+        kernel(values)
+        return RgbFloatColorList(values)
+    }
+
+    /**
+     * Apply a ColorCube to a list of colors in parallel with fork/join. Each range copies its own
+     * colors into one preallocated output and transforms them in place, so there is nothing to
+     * concatenate at the end.
      */
     fun applyCubeToColorsInParallel(
             cube: ColorCube,
             colors: List<Color>,
-            executor: ExecutorService,
-            batchSize: Int = DEFAULT_BATCH_SIZE
+            pool: ForkJoinPool = Util.forkJoinPool,
+            threshold: Int = forkJoinThreshold(colors.size, pool.parallelism)
     ): List<Color> {
-        val size = batchSize.coerceIn(0, colors.size)
-        val tasks = mutableListOf<Future<List<Color>>>()
-        var remaining = colors.size
+        val values = FloatArray(colors.size * N_CHANNELS_RGB)
+        val cells = cellValues(cube)
+        forkJoin(pool, 0, colors.size, threshold) { start, end ->
+            val colorsInRange = colors.subList(start, end)
+            Util.copyColorsIntoFloatArray(colorsInRange, values, start * N_CHANNELS_RGB)
+            applyCubeToRgb(cube, values, values, start, end, cells)
+        }
+        return RgbFloatColorList(values)
+    }
+
+    /**
+     * Apply a ColorCube to colors [from, to) stored as interleaved RGB floats, writing the results
+     * to the same positions in dst. src and dst may be the same array.
+     *
+     * This is the same math as the reference path in applyCubeToColor(), step for step, so the
+     * results are identical. The difference is that everything lives in local primitives and the
+     * lattice is read straight out of the cube's values, so nothing at all is allocated per color.
+     *
+     * If the cube keeps a cell-major copy of its lattice we read that instead, which gives the
+     * same results with fewer cache misses for scattered colors. See ColorCube.cellMajor.
+     */
+    fun applyCubeToRgb(
+            cube: ColorCube,
+            src: FloatArray,
+            dst: FloatArray,
+            from: Int = 0,
+            to: Int = src.size / N_CHANNELS_RGB
+    ) = applyCubeToRgb(cube, src, dst, from, to, cellValues(cube))
+
+    /**
+     * applyCubeToRgb() reading [cells], the cube's lattice in cell-major order, or the lattice
+     * itself if that's null.
+     */
+    internal fun applyCubeToRgb(
+            cube: ColorCube,
+            src: FloatArray,
+            dst: FloatArray,
+            from: Int,
+            to: Int,
+            cells: FloatArray?
+    ) = if (cells != null) applyCellMajorCubeToRgb(cube, cells, src, dst, from, to)
+    else applyLatticeCubeToRgb(cube, src, dst, from, to)
+
+    /**
+     * The cell-major lattice to read for [cube], if it keeps one. Read once per apply, so an apply
+     * never sees the copy dropped halfway through.
+     */
+    internal fun cellValues(cube: ColorCube): FloatArray? =
+            if (DO_CELL_MAJOR_3DLUT) cube.cellValues else null
+
+    private fun applyLatticeCubeToRgb(
+            cube: ColorCube,
+            src: FloatArray,
+            dst: FloatArray,
+            from: Int,
+            to: Int
+    ) {
+        val values = cube.values
+        val last = cube.n - 1
+        val scale = last.toFloat()
+        val stepY = cube.n * N_CHANNELS_RGB
+        val stepZ = cube.n * stepY
+        for (i in from until to) {
+            val c = i * N_CHANNELS_RGB
+            val x = scale * src[c]
+            val y = scale * src[c + 1]
+            val z = scale * src[c + 2]
+
+            val x0 = latticeOrigin(x, last)
+            val dx = latticeFraction(x, x0)
+            val y0 = latticeOrigin(y, last)
+            val dy = latticeFraction(y, y0)
+            val z0 = latticeOrigin(z, last)
+            val dz = latticeFraction(z, z0)
+
+            val i000 = x0 * N_CHANNELS_RGB + y0 * stepY + z0 * stepZ
+            dst[c] = trilinearInterpolateChannel(values, i000, stepY, stepZ, dx, dy, dz)
+            dst[c + 1] = trilinearInterpolateChannel(values, i000 + 1, stepY, stepZ, dx, dy, dz)
+            dst[c + 2] = trilinearInterpolateChannel(values, i000 + 2, stepY, stepZ, dx, dy, dz)
+        }
+    }
+
+    /**
+     * Apply a ColorCube to interleaved RGB floats [from, to) with fork/join, writing straight into
+     * dst. Ranges of at most [threshold] colors are done sequentially, so small inputs never leave
+     * the calling thread.
+     */
+    fun applyCubeToRgbForkJoin(
+            cube: ColorCube,
+            src: FloatArray,
+            dst: FloatArray,
+            pool: ForkJoinPool = Util.forkJoinPool,
+            from: Int = 0,
+            to: Int = src.size / N_CHANNELS_RGB,
+            threshold: Int = forkJoinThreshold(to - from, pool.parallelism)
+    ) {
+        val cells = cellValues(cube)
+        forkJoin(pool, from, to, threshold) { start, end ->
+            applyCubeToRgb(cube, src, dst, start, end, cells)
+        }
+    }
+
+    /**
+     * Apply a ShapedColorCube to interleaved RGB floats [from, to) in one pass: each channel goes
+     * through its shaper curve, and the result goes through the same trilinear math as
+     * applyCubeToRgb(). Nothing is allocated per color. src and dst may be the same array.
+     */
+    fun applyShapedCubeToRgb(
+            shaped: ShapedColorCube,
+            src: FloatArray,
+            dst: FloatArray,
+            from: Int = 0,
+            to: Int = src.size / N_CHANNELS_RGB
+    ) {
+        val red = shaped.red
+        val green = shaped.green
+        val blue = shaped.blue
+        val cube = shaped.cube
+        val values = cube.values
+        val last = cube.n - 1
+        val scale = last.toFloat()
+        val stepY = cube.n * N_CHANNELS_RGB
+        val stepZ = cube.n * stepY
+        for (i in from until to) {
+            val c = i * N_CHANNELS_RGB
+            val x = scale * shape(red, src[c])
+            val y = scale * shape(green, src[c + 1])
+            val z = scale * shape(blue, src[c + 2])
+
+            val x0 = latticeOrigin(x, last)
+            val dx = latticeFraction(x, x0)
+            val y0 = latticeOrigin(y, last)
+            val dy = latticeFraction(y, y0)
+            val z0 = latticeOrigin(z, last)
+            val dz = latticeFraction(z, z0)
+
+            val i000 = x0 * N_CHANNELS_RGB + y0 * stepY + z0 * stepZ
+            dst[c] = trilinearInterpolateChannel(values, i000, stepY, stepZ, dx, dy, dz)
+            dst[c + 1] = trilinearInterpolateChannel(values, i000 + 1, stepY, stepZ, dx, dy, dz)
+            dst[c + 2] = trilinearInterpolateChannel(values, i000 + 2, stepY, stepZ, dx, dy, dz)
+        }
+    }
+
+    /**
+     * Apply a ShapedColorCube with fork/join, writing straight into dst.
+     */
+    fun applyShapedCubeToRgbForkJoin(
+            shaped: ShapedColorCube,
+            src: FloatArray,
+            dst: FloatArray,
+            pool: ForkJoinPool = Util.forkJoinPool,
+            from: Int = 0,
+            to: Int = src.size / N_CHANNELS_RGB,
+            threshold: Int = forkJoinThreshold(to - from, pool.parallelism)
+    ) = forkJoin(pool, from, to, threshold) { start, end ->
+        applyShapedCubeToRgb(shaped, src, dst, start, end)
+    }
+
+    /**
+     * Linear interpolation into a 1D curve of evenly spaced points over [0,1].
+     */
+    @Suppress("NOTHING_TO_INLINE")
+    private inline fun shape(curve: FloatArray, v: Float): Float {
+        val last = curve.size - 1
+        val x = last * v
+        val x0 = latticeOrigin(x, last)
+        val dx = latticeFraction(x, x0)
+        val a = curve[x0]
+        return a + (curve[x0 + 1] - a) * dx
+    }
+
+    /**
+     * applyCubeToRgb() reading the cube's cell-major lattice. Same positions, same corners and
+     * same lerps in the same order, so the results are identical.
+     */
+    private fun applyCellMajorCubeToRgb(
+            cube: ColorCube,
+            cells: FloatArray,
+            src: FloatArray,
+            dst: FloatArray,
+            from: Int,
+            to: Int
+    ) {
+        val last = cube.n - 1
+        val scale = last.toFloat()
+        val stepY = last * CELL_CORNERS_SIZE
+        val stepZ = last * stepY
+        for (i in from until to) {
+            val c = i * N_CHANNELS_RGB
+            val x = scale * src[c]
+            val y = scale * src[c + 1]
+            val z = scale * src[c + 2]
+
+            val x0 = latticeOrigin(x, last)
+            val dx = latticeFraction(x, x0)
+            val y0 = latticeOrigin(y, last)
+            val dy = latticeFraction(y, y0)
+            val z0 = latticeOrigin(z, last)
+            val dz = latticeFraction(z, z0)
+
+            val cell = x0 * CELL_CORNERS_SIZE + y0 * stepY + z0 * stepZ
+            dst[c] = cellChannel(cells, cell, dx, dy, dz)
+            dst[c + 1] = cellChannel(cells, cell + 1, dx, dy, dz)
+            dst[c + 2] = cellChannel(cells, cell + 2, dx, dy, dz)
+        }
+    }
+
+    /**
+     * Copy a cube's lattice into cell-major order. Cells go in x + y * (n - 1) + z * (n - 1)^2
+     * order, and each one holds its 8 corners as RGB with blue changing fastest, then green, then
+     * red, which is the order the lerps read them in.
+     */
+    internal fun toCellMajor(cube: ColorCube): FloatArray {
+        val values = cube.values
+        val cells = cube.n - 1
+        val stepY = cube.n * N_CHANNELS_RGB
+        val stepZ = cube.n * stepY
+        val result = FloatArray(cells * cells * cells * CELL_CORNERS_SIZE)
         var n = 0
+        for (z in 0 until cells) for (y in 0 until cells) for (x in 0 until cells) {
+            val i000 = x * N_CHANNELS_RGB + y * stepY + z * stepZ
+            // corners as red, green and blue bits, blue lowest
+            for (corner in 0 until 8) {
+                val i = i000 + (corner shr 2) * N_CHANNELS_RGB +
+                        ((corner shr 1) and 1) * stepY + (corner and 1) * stepZ
+                result[n] = values[i]
+                result[n + 1] = values[i + 1]
+                result[n + 2] = values[i + 2]
+                n += N_CHANNELS_RGB
+            }
+        }
+        return result
+    }
+
+    /**
+     * Apply a PolynomialColorCube to interleaved RGB floats [from, to). The cell and fractions are
+     * found exactly like applyCubeToRgb(), then each channel is its cell's polynomial, evaluated
+     * as nested multiply-adds in x.
+     */
+    fun applyPolynomialCubeToRgb(
+            cube: PolynomialColorCube,
+            src: FloatArray,
+            dst: FloatArray,
+            from: Int = 0,
+            to: Int = src.size / N_CHANNELS_RGB
+    ) {
+        val coefficients = cube.coefficients
+        val last = cube.cells
+        val scale = last.toFloat()
+        val stepY = last * PolynomialColorCube.CELL_SIZE
+        val stepZ = last * stepY
+        for (i in from until to) {
+            val c = i * N_CHANNELS_RGB
+            val x = scale * src[c]
+            val y = scale * src[c + 1]
+            val z = scale * src[c + 2]
+
+            val x0 = latticeOrigin(x, last)
+            val dx = latticeFraction(x, x0)
+            val y0 = latticeOrigin(y, last)
+            val dy = latticeFraction(y, y0)
+            val z0 = latticeOrigin(z, last)
+            val dz = latticeFraction(z, z0)
+
+            val cell = x0 * PolynomialColorCube.CELL_SIZE + y0 * stepY + z0 * stepZ
+            dst[c] = polynomial(coefficients, cell, dx, dy, dz)
+            dst[c + 1] = polynomial(coefficients, cell + 8, dx, dy, dz)
+            dst[c + 2] = polynomial(coefficients, cell + 16, dx, dy, dz)
+        }
+    }
+
+    /**
+     * Apply a PolynomialColorCube to interleaved RGB floats [from, to) with fork/join.
+     */
+    fun applyPolynomialCubeToRgbForkJoin(
+            cube: PolynomialColorCube,
+            src: FloatArray,
+            dst: FloatArray,
+            pool: ForkJoinPool = Util.forkJoinPool,
+            from: Int = 0,
+            to: Int = src.size / N_CHANNELS_RGB,
+            threshold: Int = forkJoinThreshold(to - from, pool.parallelism)
+    ) = forkJoin(pool, from, to, threshold) { start, end ->
+        applyPolynomialCubeToRgb(cube, src, dst, start, end)
+    }
+
+    /**
+     * c0 + c1 x + c2 y + c3 z + c4 xy + c5 xz + c6 yz + c7 xyz for the 8 coefficients at [i].
+     */
+    @Suppress("NOTHING_TO_INLINE")
+    private inline fun polynomial(
+            coefficients: FloatArray,
+            i: Int,
+            dx: Float,
+            dy: Float,
+            dz: Float
+    ): Float {
+        val a = coefficients[i] + coefficients[i + 1] * dx
+        val b = coefficients[i + 2] + coefficients[i + 4] * dx
+        val c = coefficients[i + 3] + coefficients[i + 5] * dx
+        val d = coefficients[i + 6] + coefficients[i + 7] * dx
+        return a + b * dy + (c + d * dy) * dz
+    }
+
+    /**
+     * Quality.NEAREST: apply a ColorCube to interleaved RGB floats [from, to) by just copying the
+     * nearest lattice point. No interpolation, so 3 reads per color instead of 24. Channels outside
+     * [0,1] read the nearest edge of the cube. src and dst may be the same array.
+     */
+    fun applyCubeToRgbNearest(
+            cube: ColorCube,
+            src: FloatArray,
+            dst: FloatArray,
+            from: Int = 0,
+            to: Int = src.size / N_CHANNELS_RGB
+    ) {
+        val values = cube.values
+        val last = cube.n - 1
+        val scale = last.toFloat()
+        val stepY = cube.n * N_CHANNELS_RGB
+        val stepZ = cube.n * stepY
+        for (i in from until to) {
+            val c = i * N_CHANNELS_RGB
+            val x = (scale * src[c] + 0.5f).toInt().coerceIn(0, last)
+            val y = (scale * src[c + 1] + 0.5f).toInt().coerceIn(0, last)
+            val z = (scale * src[c + 2] + 0.5f).toInt().coerceIn(0, last)
+            val p = x * N_CHANNELS_RGB + y * stepY + z * stepZ
+            dst[c] = values[p]
+            dst[c + 1] = values[p + 1]
+            dst[c + 2] = values[p + 2]
+        }
+    }
+
+    /**
+     * Quality.NEAREST with fork/join.
+     */
+    fun applyCubeToRgbNearestForkJoin(
+            cube: ColorCube,
+            src: FloatArray,
+            dst: FloatArray,
+            pool: ForkJoinPool = Util.forkJoinPool,
+            from: Int = 0,
+            to: Int = src.size / N_CHANNELS_RGB,
+            threshold: Int = forkJoinThreshold(to - from, pool.parallelism)
+    ) = forkJoin(pool, from, to, threshold) { start, end ->
+        applyCubeToRgbNearest(cube, src, dst, start, end)
+    }
+
+    /**
+     * Run a CPU kernel over [from, to), with fork/join in [pool] if the default BackendRegistry
+     * says that many colors are worth it, and on the calling thread otherwise. Every CPU-only
+     * kernel makes its choice here.
+     */
+    internal fun applyOnCpu(
+            from: Int,
+            to: Int,
+            pool: ForkJoinPool = Util.forkJoinPool,
+            threshold: Int = forkJoinThreshold(to - from, pool.parallelism),
+            kernel: (Int, Int) -> Unit
+    ) {
+        if (BackendRegistry.default.useParallelCpu(to - from)) {
+            forkJoin(pool, from, to, threshold, kernel)
+        } else {
+            kernel(from, to)
+        }
+    }
+
+    /**
+     * Split [from, to) in halves until ranges are at most [threshold], and run [leaf] on each
+     * range in [pool]. Ranges don't overlap, so leaves can write their own part of a shared output.
+     */
+    internal fun forkJoin(
+            pool: ForkJoinPool,
+            from: Int,
+            to: Int,
+            threshold: Int,
+            leaf: (Int, Int) -> Unit
+    ) {
+        if (to - from <= threshold) leaf(from, to)
+        else pool.invoke(RangeAction(from, to, threshold.coerceAtLeast(1), leaf))
+    }
+
+    /**
+     * Range size for fork/join. We aim for a few ranges per worker so that a slow worker doesn't
+     * hold everyone up, but never go below the point where splitting costs more than it saves.
+     */
+    fun forkJoinThreshold(size: Int, parallelism: Int): Int =
+            (size / (parallelism * FORK_JOIN_RANGES_PER_WORKER)).coerceAtLeast(MIN_FORK_JOIN_RANGE)
 
-        while (remaining > 0) {
-            val start = n
-            val end = (n + size).coerceAtMost(colors.size)
-            tasks += executor.submit(Callable {
-                applyCubeToColors(cube, colors.subList(start, end))
-            })
-            n += batchSize
-            remaining -= size
+    private class RangeAction(
+            private val from: Int,
+            private val to: Int,
+            private val threshold: Int,
+            private val leaf: (Int, Int) -> Unit
+    ) : RecursiveAction() {
+        override fun compute() {
+            if (to - from <= threshold) {
+                leaf(from, to)
+            } else {
+                val mid = (from + to) ushr 1
+                invokeAll(
+                        RangeAction(from, mid, threshold, leaf),
+                        RangeAction(mid, to, threshold, leaf)
+                )
+            }
+        }
+    }
+
+    /**
+     * Apply a ColorCube to planar colors [from, to), writing the results to the same positions in
+     * dst. src and dst may be the same.
+     *
+     * Same positions and lerps as applyCubeToRgb(), read out of the planes instead of interleaved
+     * floats, so the results are identical.
+     */
+    fun applyCubeToPlanar(
+            cube: ColorCube,
+            src: PlanarColorData,
+            dst: PlanarColorData,
+            from: Int = 0,
+            to: Int = src.size
+    ) {
+        require(dst.size >= to)
+        val values = cube.values
+        val last = cube.n - 1
+        val scale = last.toFloat()
+        val stepY = cube.n * N_CHANNELS_RGB
+        val stepZ = cube.n * stepY
+        val srcR = src.r
+        val srcG = src.g
+        val srcB = src.b
+        val dstR = dst.r
+        val dstG = dst.g
+        val dstB = dst.b
+        for (i in from until to) {
+            val x = scale * srcR[i]
+            val y = scale * srcG[i]
+            val z = scale * srcB[i]
+
+            val x0 = latticeOrigin(x, last)
+            val dx = latticeFraction(x, x0)
+            val y0 = latticeOrigin(y, last)
+            val dy = latticeFraction(y, y0)
+            val z0 = latticeOrigin(z, last)
+            val dz = latticeFraction(z, z0)
+
+            val i000 = x0 * N_CHANNELS_RGB + y0 * stepY + z0 * stepZ
+            dstR[i] = trilinearInterpolateChannel(values, i000, stepY, stepZ, dx, dy, dz)
+            dstG[i] = trilinearInterpolateChannel(values, i000 + 1, stepY, stepZ, dx, dy, dz)
+            dstB[i] = trilinearInterpolateChannel(values, i000 + 2, stepY, stepZ, dx, dy, dz)
+        }
+    }
+
+    /**
+     * Apply a ColorCube to planar colors [from, to) with fork/join, writing straight into dst.
+     */
+    fun applyCubeToPlanarForkJoin(
+            cube: ColorCube,
+            src: PlanarColorData,
+            dst: PlanarColorData,
+            pool: ForkJoinPool = Util.forkJoinPool,
+            from: Int = 0,
+            to: Int = src.size,
+            threshold: Int = forkJoinThreshold(to - from, pool.parallelism)
+    ) = forkJoin(pool, from, to, threshold) { start, end ->
+        applyCubeToPlanar(cube, src, dst, start, end)
+    }
+
+    /**
+     * Apply a ColorCube to pixels [from, to) of a BufferColorData, writing the results to the same
+     * pixels of dst, a chunk at a time. The only heap used is one chunk of floats. src and dst may
+     * be the same.
+     */
+    fun applyCubeToBuffer(
+            cube: ColorCube,
+            src: BufferColorData,
+            dst: BufferColorData,
+            from: Int = 0,
+            to: Int = src.size,
+            chunkSize: Int = BUFFER_CHUNK_SIZE
+    ) {
+        val chunk = FloatArray(chunkSize.coerceAtMost(to - from) * N_CHANNELS_RGB)
+        var start = from
+        while (start < to) {
+            val count = chunkSize.coerceAtMost(to - start)
+            src.copyRgbInto(chunk, 0, start, count)
+            applyCubeToRgb(cube, chunk, chunk, 0, count)
+            dst.copyRgbFrom(chunk, 0, start, count)
+            start += count
+        }
+    }
+
+    /**
+     * Apply a ColorCube to pixels [from, to) of a BufferColorData with fork/join. Each range goes
+     * through applyCubeToBuffer() with its own chunk of floats, so heap use stays at a chunk per
+     * worker no matter how big the image is.
+     */
+    fun applyCubeToBufferForkJoin(
+            cube: ColorCube,
+            src: BufferColorData,
+            dst: BufferColorData,
+            pool: ForkJoinPool = Util.forkJoinPool,
+            from: Int = 0,
+            to: Int = src.size,
+            threshold: Int = forkJoinThreshold(to - from, pool.parallelism),
+            chunkSize: Int = BUFFER_CHUNK_SIZE
+    ) {
+        require(dst.size >= to)
+        forkJoin(pool, from, to, threshold) { start, end ->
+            applyCubeToBuffer(cube, src, dst, start, end, chunkSize)
         }
+    }
+
+    /**
+     * Apply a HalfColorCube to a Color.
+     */
+    fun applyHalfCubeToColor(cube: HalfColorCube, color: Color): Color {
+        val rgb = floatArrayOf(color.r.value, color.g.value, color.b.value)
+        applyHalfCubeToRgb(cube, rgb, rgb)
+        return Color(Bounded(rgb[0]), Bounded(rgb[1]), Bounded(rgb[2]))
+    }
 
-        return mutableListOf<Color>().apply {
-            tasks.forEach {
-                addAll(it.get())
+    /**
+     * Apply a HalfColorCube to colors [from, to) stored as interleaved RGB floats. The lattice is
+     * read as halves and everything else is float, with the same positions and lerps as
+     * applyCubeToRgb(), so the results are identical to applying the float cube the halves expand
+     * to. The only extra error compared to the original float cube is the rounding of the lattice
+     * values themselves.
+     */
+    fun applyHalfCubeToRgb(
+            cube: HalfColorCube,
+            src: FloatArray,
+            dst: FloatArray,
+            from: Int = 0,
+            to: Int = src.size / N_CHANNELS_RGB
+    ) {
+        val halves = cube.halfValues
+        val last = cube.n - 1
+        val scale = last.toFloat()
+        val stepY = cube.n * N_CHANNELS_RGB
+        val stepZ = cube.n * stepY
+        for (i in from until to) {
+            val c = i * N_CHANNELS_RGB
+            val x = scale * src[c]
+            val y = scale * src[c + 1]
+            val z = scale * src[c + 2]
+
+            val x0 = latticeOrigin(x, last)
+            val dx = latticeFraction(x, x0)
+            val y0 = latticeOrigin(y, last)
+            val dy = latticeFraction(y, y0)
+            val z0 = latticeOrigin(z, last)
+            val dz = latticeFraction(z, z0)
+
+            val i000 = x0 * N_CHANNELS_RGB + y0 * stepY + z0 * stepZ
+            for (ch in 0 until N_CHANNELS_RGB) {
+                dst[c + ch] = trilinearInterpolateChannel(i000 + ch, stepY, stepZ, dx, dy, dz) {
+                    Half.toFloat(halves[it])
+                }
             }
         }
     }
 
-    private const val DEFAULT_BATCH_SIZE = ColorCube.N_COLORS / 17
+    /**
+     * Apply a HalfColorCube to interleaved RGB floats [from, to) with fork/join.
+     */
+    fun applyHalfCubeToRgbForkJoin(
+            cube: HalfColorCube,
+            src: FloatArray,
+            dst: FloatArray,
+            pool: ForkJoinPool = Util.forkJoinPool,
+            from: Int = 0,
+            to: Int = src.size / N_CHANNELS_RGB,
+            threshold: Int = forkJoinThreshold(to - from, pool.parallelism)
+    ) = forkJoin(pool, from, to, threshold) { start, end ->
+        applyHalfCubeToRgb(cube, src, dst, start, end)
+    }
+
+    /**
+     * Apply a ColorCube to ColorInts [from, to), writing the results to the same positions in dst
+     * rounded to U8. Alpha is passed through as is. src and dst may be the same array.
+     *
+     * Positions come from a U8LatticeTable, which has exactly what applyCubeToRgb() would compute
+     * for the same colors as floats, so the results are identical to that rounded to U8. There is
+     * no position math or edge check per pixel.
+     */
+    fun applyCubeToColorInts(
+            cube: ColorCube,
+            @ColorInt src: IntArray,
+            @ColorInt dst: IntArray,
+            from: Int = 0,
+            to: Int = src.size
+    ) {
+        val values = cube.values
+        val table = U8LatticeTable.forSize(cube.n)
+        val origin = table.floatOrigin
+        val fraction = table.floatFraction
+        val stepY = cube.n * N_CHANNELS_RGB
+        val stepZ = cube.n * stepY
+        for (i in from until to) {
+            val color = src[i]
+            val r = Util.red(color)
+            val g = Util.green(color)
+            val b = Util.blue(color)
+            val dx = fraction[r]
+            val dy = fraction[g]
+            val dz = fraction[b]
+
+            val i000 = origin[r] * N_CHANNELS_RGB + origin[g] * stepY + origin[b] * stepZ
+            dst[i] = (color and ALPHA_MASK) or
+                    (Util.normalToU8(trilinearInterpolateChannel(
+                            values, i000, stepY, stepZ, dx, dy, dz)) shl 16) or
+                    (Util.normalToU8(trilinearInterpolateChannel(
+                            values, i000 + 1, stepY, stepZ, dx, dy, dz)) shl 8) or
+                    Util.normalToU8(trilinearInterpolateChannel(
+                            values, i000 + 2, stepY, stepZ, dx, dy, dz))
+        }
+    }
+
+    /**
+     * Apply a ColorCube to ColorInts with fork/join, writing straight into dst.
+     */
+    fun applyCubeToColorIntsForkJoin(
+            cube: ColorCube,
+            @ColorInt src: IntArray,
+            @ColorInt dst: IntArray,
+            pool: ForkJoinPool = Util.forkJoinPool,
+            from: Int = 0,
+            to: Int = src.size,
+            threshold: Int = forkJoinThreshold(to - from, pool.parallelism)
+    ) = forkJoin(pool, from, to, threshold) { start, end ->
+        applyCubeToColorInts(cube, src, dst, start, end)
+    }
+
+    /**
+     * Apply a PackedColorCube to ColorInts [from, to), writing the results to the same positions in
+     * dst, all in fixed point. See PackedColorCube for the error bounds. src and dst may be the
+     * same array.
+     *
+     * A U8 channel v is at (n - 1) * v / 255 in the lattice, so we keep positions in units of
+     * 1/255 and the fraction f is an exact integer in 0..255. Origins and fractions for all 256
+     * values come from a U8LatticeTable. Each lerp multiplies the scale by
+     * 255, so after z and y values are Ints up to 255^3, and the last lerp goes up to 255^4, which
+     * needs a Long for one multiply-add before rounding.
+     */
+    fun applyPackedCubeToColorInts(
+            cube: PackedColorCube,
+            @ColorInt src: IntArray,
+            @ColorInt dst: IntArray,
+            from: Int = 0,
+            to: Int = src.size
+    ) {
+        val packed = cube.packed
+        val table = U8LatticeTable.forSize(cube.n)
+        val origin = table.fixedOrigin
+        val fraction = table.fixedFraction
+        val stepY = cube.n
+        val stepZ = cube.n * cube.n
+        for (i in from until to) {
+            val color = src[i]
+            val r = Util.red(color)
+            val g = Util.green(color)
+            val b = Util.blue(color)
+            val fx = fraction[r]
+            val fy = fraction[g]
+            val fz = fraction[b]
+
+            val i000 = origin[r] + origin[g] * stepY + origin[b] * stepZ
+            val c000 = packed[i000]
+            val c001 = packed[i000 + stepZ]
+            val c010 = packed[i000 + stepY]
+            val c011 = packed[i000 + stepY + stepZ]
+            val c100 = packed[i000 + 1]
+            val c101 = packed[i000 + 1 + stepZ]
+            val c110 = packed[i000 + 1 + stepY]
+            val c111 = packed[i000 + 1 + stepY + stepZ]
+
+            dst[i] = (color and ALPHA_MASK) or
+                    (fixedTrilinear(c000, c001, c010, c011, c100, c101, c110, c111,
+                            16, fx, fy, fz) shl 16) or
+                    (fixedTrilinear(c000, c001, c010, c011, c100, c101, c110, c111,
+                            8, fx, fy, fz) shl 8) or
+                    fixedTrilinear(c000, c001, c010, c011, c100, c101, c110, c111,
+                            0, fx, fy, fz)
+        }
+    }
+
+    /**
+     * Apply a PackedColorCube to ColorInts with fork/join, writing straight into dst.
+     */
+    fun applyPackedCubeToColorIntsForkJoin(
+            cube: PackedColorCube,
+            @ColorInt src: IntArray,
+            @ColorInt dst: IntArray,
+            pool: ForkJoinPool = Util.forkJoinPool,
+            from: Int = 0,
+            to: Int = src.size,
+            threshold: Int = forkJoinThreshold(to - from, pool.parallelism)
+    ) = forkJoin(pool, from, to, threshold) { start, end ->
+        applyPackedCubeToColorInts(cube, src, dst, start, end)
+    }
+
+    /**
+     * One U8 channel of a fixed-point trilinear lookup, from the 8 packed corners and fractions
+     * in 0..255. Lerps z, then y, then x like the float kernels, and rounds to nearest.
+     */
+    @Suppress("NOTHING_TO_INLINE")
+    private inline fun fixedTrilinear(
+            c000: Int,
+            c001: Int,
+            c010: Int,
+            c011: Int,
+            c100: Int,
+            c101: Int,
+            c110: Int,
+            c111: Int,
+            shift: Int,
+            fx: Int,
+            fy: Int,
+            fz: Int
+    ): Int {
+        val v000 = (c000 shr shift) and 0xff
+        val v010 = (c010 shr shift) and 0xff
+        val v100 = (c100 shr shift) and 0xff
+        val v110 = (c110 shr shift) and 0xff
+        val c00x = v000 * 255 + (((c001 shr shift) and 0xff) - v000) * fz
+        val c01x = v010 * 255 + (((c011 shr shift) and 0xff) - v010) * fz
+        val c10x = v100 * 255 + (((c101 shr shift) and 0xff) - v100) * fz
+        val c11x = v110 * 255 + (((c111 shr shift) and 0xff) - v110) * fz
+        val c0xx = c00x * 255 + (c01x - c00x) * fy
+        val c1xx = c10x * 255 + (c11x - c10x) * fy
+        val result = c0xx.toLong() * 255 + (c1xx - c0xx).toLong() * fx
+        return ((result + FIXED_HALF) / FIXED_ONE).toInt()
+    }
+
+    /**
+     * Resample a ColorCube to an n^3 lattice by applying it to the n^3 identity lattice with
+     * fork/join.
+     */
+    fun resampleCube(cube: ColorCube, n: Int, pool: ForkJoinPool = Util.forkJoinPool): ColorCube {
+        val lattice = ColorCube.identity(n).values
+        val values = FloatArray(lattice.size)
+        applyCubeToRgbForkJoin(cube, lattice, values, pool)
+        return ColorCube(values, n)
+    }
+
+    private const val MIN_FORK_JOIN_RANGE = 4096
+    private const val ALPHA_MASK = -0x1000000
+    private const val FIXED_ONE = 255L * 255 * 255
+    private const val FIXED_HALF = FIXED_ONE / 2
+    private const val FORK_JOIN_RANGES_PER_WORKER = 4
+    private const val BUFFER_CHUNK_SIZE = 1 shl 14
+    private const val CELL_CORNERS_SIZE = 8 * N_CHANNELS_RGB
 
     /**
      * Use tri-linear interpolation to apply a ColorCube to a Color.
@@ -79,8 +836,32 @@ object KotlinCpuTrilinear {
      *  That's everything we need. Calculate the result Color.
      */
     private fun trilinearInterpolateColor(cube: ColorCube, color: Color): Color {
-        val position = LocalCubePosition(color)
-        val localCube = LocalColorCube(position.localOrigin, cube)
+        val position = LocalCubePosition(color, cube.n)
+        val localCube = LocalColorCube(position.localOrigin, cube.n)
+        return Color(
+                Bounded(trilinearInterpolateChannel(cube.values, localCube, position, 0)),
+                Bounded(trilinearInterpolateChannel(cube.values, localCube, position, 1)),
+                Bounded(trilinearInterpolateChannel(cube.values, localCube, position, 2))
+        )
+    }
+
+    /**
+     * Interpolate one channel of the result straight out of the cube's RGB float values.
+     */
+    private fun trilinearInterpolateChannel(
+            values: FloatArray,
+            localCube: LocalColorCube,
+            position: LocalCubePosition,
+            channel: Int
+    ): Float {
+        val c000 = values[localCube.i000 + channel]
+        val c001 = values[localCube.i001 + channel]
+        val c010 = values[localCube.i010 + channel]
+        val c011 = values[localCube.i011 + channel]
+        val c100 = values[localCube.i100 + channel]
+        val c101 = values[localCube.i101 + channel]
+        val c110 = values[localCube.i110 + channel]
+        val c111 = values[localCube.i111 + channel]
 
         // Lerp is a great but also kind of bad word for linear interpolate. It's sometimes
         // called mix. Everything in our algebra is lerp-able, and Color is no exception.
@@ -88,43 +869,131 @@ object KotlinCpuTrilinear {
         // We choose one channel to interpolate in first. We did red here but it doesn't matter
         // because it's a cube! We now start with the two faces of the cube perpendicular to the
         // red axis and do 4 interpolations to collapse the down to 4 Colors in a green-blue plane.
-        val c00x = Util.linearInterpolate(localCube.c000, localCube.c001, position.localOffset.b)
-        val c01x = Util.linearInterpolate(localCube.c010, localCube.c011, position.localOffset.b)
-        val c10x = Util.linearInterpolate(localCube.c100, localCube.c101, position.localOffset.b)
-        val c11x = Util.linearInterpolate(localCube.c110, localCube.c111, position.localOffset.b)
+        val c00x = lerp(c000, c001, position.localOffset.z)
+        val c01x = lerp(c010, c011, position.localOffset.z)
+        val c10x = lerp(c100, c101, position.localOffset.z)
+        val c11x = lerp(c110, c111, position.localOffset.z)
 
         // Interpolate twice more in the green direction to collapse the plane down to a line
         // parallel to the blue axis.
-        val c0xx = Util.linearInterpolate(c00x, c01x, position.localOffset.g)
-        val c1xx = Util.linearInterpolate(c10x, c11x, position.localOffset.g)
+        val c0xx = lerp(c00x, c01x, position.localOffset.y)
+        val c1xx = lerp(c10x, c11x, position.localOffset.y)
 
         // Interpolate once more in the blue direction to collapse the line to a point,
         // our Color!
-        return Util.linearInterpolate(c0xx, c1xx, position.localOffset.r)
+        return lerp(c0xx, c1xx, position.localOffset.x)
+    }
+
+    /**
+     * trilinearInterpolateChannel() on primitives. [i000] is the offset of the channel at the local
+     * origin, and the other corners are a step away in each direction. Same lerps in the same
+     * order.
+     */
+    @Suppress("NOTHING_TO_INLINE")
+    private inline fun trilinearInterpolateChannel(
+            values: FloatArray,
+            i000: Int,
+            stepY: Int,
+            stepZ: Int,
+            dx: Float,
+            dy: Float,
+            dz: Float
+    ): Float = trilinearInterpolateChannel(i000, stepY, stepZ, dx, dy, dz) { values[it] }
+
+    /**
+     * trilinearInterpolateChannel() for any storage laid out like ColorCube.values. [value] reads
+     * the lattice value at an offset.
+     */
+    private inline fun trilinearInterpolateChannel(
+            i000: Int,
+            stepY: Int,
+            stepZ: Int,
+            dx: Float,
+            dy: Float,
+            dz: Float,
+            value: (Int) -> Float
+    ): Float {
+        val i100 = i000 + N_CHANNELS_RGB
+        val c00x = lerp(value(i000), value(i000 + stepZ), dz)
+        val c01x = lerp(value(i000 + stepY), value(i000 + stepY + stepZ), dz)
+        val c10x = lerp(value(i100), value(i100 + stepZ), dz)
+        val c11x = lerp(value(i100 + stepY), value(i100 + stepY + stepZ), dz)
+        val c0xx = lerp(c00x, c01x, dy)
+        val c1xx = lerp(c10x, c11x, dy)
+        return lerp(c0xx, c1xx, dx)
+    }
+
+    /**
+     * trilinearInterpolateChannel() for a cell-major cell, where the corners are one RGB apart.
+     */
+    @Suppress("NOTHING_TO_INLINE")
+    private inline fun cellChannel(
+            cells: FloatArray,
+            i000: Int,
+            dx: Float,
+            dy: Float,
+            dz: Float
+    ): Float {
+        val c00x = lerp(cells[i000], cells[i000 + 3], dz)
+        val c01x = lerp(cells[i000 + 6], cells[i000 + 9], dz)
+        val c10x = lerp(cells[i000 + 12], cells[i000 + 15], dz)
+        val c11x = lerp(cells[i000 + 18], cells[i000 + 21], dz)
+        val c0xx = lerp(c00x, c01x, dy)
+        val c1xx = lerp(c10x, c11x, dy)
+        return lerp(c0xx, c1xx, dx)
     }
 
+    /**
+     * Same special cases as lerping Bounded values in Util, so results match the Color version.
+     */
+    private fun lerp(a: Float, b: Float, scale: Float): Float = when {
+        sameValue(scale, 0f) -> a
+        sameValue(scale, 1f) -> b
+        sameValue(a, b) -> a
+        else -> a * (1 - scale) + b * scale
+    }
+
+    private fun sameValue(a: Float, b: Float) = a == b || abs(a - b) < Bounded.BOUNDED_EPS
+
+    /**
+     * The edge handling of LocalCubePosition for one axis, for the kernels. [x] is a position in
+     * [0, last], and the origin of its local cube is the floor of it, except that the last lattice
+     * point is 1f of the way from the one before, so there's always a point on each side.
+     */
+    @Suppress("NOTHING_TO_INLINE")
+    internal inline fun latticeOrigin(x: Float, last: Int): Int = x.toInt().coerceAtMost(last - 1)
+
+    /**
+     * How far [x] is past its latticeOrigin(), in [0,1].
+     */
+    @Suppress("NOTHING_TO_INLINE")
+    internal inline fun latticeFraction(x: Float, origin: Int): Float =
+            (x - origin).coerceAtMost(1f)
+
     /**
      * Use a Color as the location in our ColorCube. The point will map to a point inside a local
      * cube in the lattice with the 8 nearest colors at the corners. We need to figure out the
      * coordinates of the lattice points so we can get the nearby colors, and we need the local
      * position in the cube so we can interpolate.
      */
-    private class LocalCubePosition(color: Color) {
+    private class LocalCubePosition(r: Float, g: Float, b: Float, n: Int) {
         val localOrigin: Int3
-        val localOffset: Color
+        val localOffset: Float3
+
+        constructor(color: Color, n: Int) : this(color.r.value, color.g.value, color.b.value, n)
 
         /**
-         * Convert the color from a position in the unit cube to a position in our N*N*N cube.
-         * Values will be real numbers in [0,N-1].
+         * Convert the color from a position in the unit cube to a position in our n*n*n cube.
+         * Values will be real numbers in [0,n-1].
          *
          * Floor this value to get the integer part of the position. This will be the indices of the
          * origin for our local cube. From now on our local cube is the origin + [0,1] in each
          * direction.
          *
          * If the Color has the value 1f in any of the channels, then the cube index will be
-         * CoolAlgebra.N-1, which is the last index in 3D (the edge of our lattice).
+         * n-1, which is the last index in 3D (the edge of our lattice).
          *
-         * What we actually want is an index that is at most CoolAlgebra.N-2. This is because we
+         * What we actually want is an index that is at most n-2. This is because we
          * always want to have a lattice point on each side of us for interpolating.
          *
          * If we need to coerce the point to the interior of the lattice, then rather than being 0f
@@ -136,46 +1005,47 @@ object KotlinCpuTrilinear {
          *  the local cube is our unit cube.
          */
         init {
-            val realPositionInIndexSpace = Float3(color) * (ColorCube.N - 1)
+            val realPositionInIndexSpace = Float3(r, g, b) * (n - 1)
             val intPositionInIndexSpace: Int3 = realPositionInIndexSpace.floor()
             var rOrigin = intPositionInIndexSpace.x
             var rOffset = realPositionInIndexSpace.x - rOrigin
-            if (rOrigin == ColorCube.N - 1) {
+            if (rOrigin == n - 1) {
                 rOrigin--
                 rOffset = 1f
             }
             var gOrigin = intPositionInIndexSpace.y
             var gOffset = realPositionInIndexSpace.y - gOrigin
-            if (gOrigin == ColorCube.N - 1) {
+            if (gOrigin == n - 1) {
                 gOrigin--
                 gOffset = 1f
             }
             var bOrigin = intPositionInIndexSpace.z
             var bOffset = realPositionInIndexSpace.z - bOrigin
-            if (bOrigin == ColorCube.N - 1) {
+            if (bOrigin == n - 1) {
                 bOrigin--
                 bOffset = 1f
             }
             localOrigin = Int3(rOrigin, gOrigin, bOrigin)
-            localOffset = Color(Bounded(rOffset), Bounded(gOffset), Bounded(bOffset))
+            localOffset = Float3(rOffset, gOffset, bOffset)
         }
     }
 
     /**
-     * 8 nearest Colors in a ColorCube based on indices of localOrigin.
+     * Offsets into a ColorCube's RGB values of the 8 nearest Colors, based on indices of
+     * localOrigin.
      */
-    private class LocalColorCube(localOrigin: Int3, cube: ColorCube) {
-        val c000: Color = cube.colors[index1d(localOrigin + p000)]
-        val c001: Color = cube.colors[index1d(localOrigin + p001)]
-        val c010: Color = cube.colors[index1d(localOrigin + p010)]
-        val c011: Color = cube.colors[index1d(localOrigin + p011)]
-        val c100: Color = cube.colors[index1d(localOrigin + p100)]
-        val c101: Color = cube.colors[index1d(localOrigin + p101)]
-        val c110: Color = cube.colors[index1d(localOrigin + p110)]
-        val c111: Color = cube.colors[index1d(localOrigin + p111)]
+    private class LocalColorCube(localOrigin: Int3, n: Int) {
+        val i000: Int = index1d(localOrigin + p000, n)
+        val i001: Int = index1d(localOrigin + p001, n)
+        val i010: Int = index1d(localOrigin + p010, n)
+        val i011: Int = index1d(localOrigin + p011, n)
+        val i100: Int = index1d(localOrigin + p100, n)
+        val i101: Int = index1d(localOrigin + p101, n)
+        val i110: Int = index1d(localOrigin + p110, n)
+        val i111: Int = index1d(localOrigin + p111, n)
 
         companion object {
-            private fun index1d(p: Int3) = p.x + p.y * ColorCube.N + p.z * ColorCube.N2
+            private fun index1d(p: Int3, n: Int) = (p.x + p.y * n + p.z * n * n) * N_CHANNELS_RGB
 
             // Unit index offsets
             private val p000 = Int3(0, 0, 0)
@@ -1,33 +1,26 @@
 package cat.the.lydia.coolalgebralydiathanks.implementation
 
-import android.renderscript.RenderScript
 import cat.the.lydia.coolalgebralydiathanks.ColorCube
-import cat.the.lydia.coolalgebralydiathanks.rs.RsFriend
 import com.lydiaschiff.hella.renderer.Lut3dRsRenderer
 
-class RsColorCubeRenderer(private var colorCube : ColorCube) : Lut3dRsRenderer(ColorCube.N) {
-
-    private var cubeUpdate = false
+/**
+ * Renders a ColorCube of any size with the 3D LUT intrinsic. Cubes are resampled to cubeDim on
+ * the way in, so the renderer's LUT allocation never changes size.
+ */
+class RsColorCubeRenderer(private var colorCube: ColorCube) : Lut3dRsRenderer(ColorCube.N) {
 
     // explicit no-arg constructor for use with camera
     constructor() : this(ColorCube.identity)
 
-    override fun onFirstDraw(rs: RenderScript) {
-        RsFriend.copyColorCubeToLutAlloc(colorCube, lutAlloc)
+    init {
+        setLutData(colorCube.resample(cubeDim).values)
     }
 
     @Synchronized
     fun setColorCube(cube: ColorCube) {
         if (this.colorCube != cube) {
             this.colorCube = cube
-            cubeUpdate = true
-        }
-    }
-
-    override fun onUpdate() {
-        if (cubeUpdate) {
-            RsFriend.copyColorCubeToLutAlloc(colorCube, lutAlloc)
-            cubeUpdate = false
+            setLutData(cube.resample(cubeDim).values)
         }
     }
 
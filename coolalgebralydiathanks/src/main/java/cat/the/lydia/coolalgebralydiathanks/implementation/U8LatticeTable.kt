@@ -0,0 +1,73 @@
+package cat.the.lydia.coolalgebralydiathanks.implementation
+
+import cat.the.lydia.coolalgebralydiathanks.ColorCube
+import cat.the.lydia.coolalgebralydiathanks.utils.Util
+
+/**
+ * Where each of the 256 U8 values of a channel lands in an n^3 lattice: the origin of the local
+ * cube along that axis, and how far past it we are.
+ *
+ * A U8 channel can only take 256 values, so the CPU kernels look these up instead of doing the
+ * multiply, floor, fraction and edge check for every channel of every pixel. The edge is already
+ * folded in, so 255 is at origin n - 2 with a fraction of all the way, and the kernels don't
+ * branch at all.
+ *
+ * There are two versions of each entry. The float one is computed with exactly the same float
+ * math as KotlinCpuTrilinear.applyCubeToRgb(), so looking it up gives identical results. The
+ * fixed-point one is exact, with the fraction in 255ths.
+ */
+internal class U8LatticeTable private constructor(val n: Int) {
+
+    /**
+     * Origin of the local cube for the float kernels.
+     */
+    val floatOrigin = IntArray(256)
+
+    /**
+     * Offset from floatOrigin, in [0,1].
+     */
+    val floatFraction = FloatArray(256)
+
+    /**
+     * Origin of the local cube for the fixed-point kernels.
+     */
+    val fixedOrigin = IntArray(256)
+
+    /**
+     * Offset from fixedOrigin, in 255ths.
+     */
+    val fixedFraction = IntArray(256)
+
+    init {
+        val last = n - 1
+        val scale = last.toFloat()
+        for (v in 0..255) {
+            val x = scale * Util.u8ToNormal(v)
+            val x0 = KotlinCpuTrilinear.latticeOrigin(x, last)
+            val dx = KotlinCpuTrilinear.latticeFraction(x, x0)
+            floatOrigin[v] = x0
+            floatFraction[v] = dx
+
+            val p = v * last
+            var p0 = p / 255
+            var fp = p - p0 * 255
+            if (p0 == last) {
+                p0--
+                fp = 255
+            }
+            fixedOrigin[v] = p0
+            fixedFraction[v] = fp
+        }
+    }
+
+    companion object {
+        private val tables = arrayOfNulls<U8LatticeTable>(ColorCube.MAX_N + 1)
+
+        /**
+         * The table for an n^3 lattice. These are created on first use and kept around.
+         */
+        fun forSize(n: Int): U8LatticeTable = synchronized(tables) {
+            tables[n] ?: U8LatticeTable(n).also { tables[n] = it }
+        }
+    }
+}
@@ -6,32 +6,44 @@ import android.renderscript.RenderScript
 import android.renderscript.Type
 import cat.the.lydia.coolalgebralydiathanks.ColorCube
 import cat.the.lydia.coolalgebralydiathanks.IdentityCube
-import cat.the.lydia.coolalgebralydiathanks.utils.Util
-import cat.the.lydia.coolalgebralydiathanks.utils.emptyFloatArray
 
 /**
- * A ColorCube-sized 3D allocation that holds ColorData as RGB F32_3 elements.
+ * A ColorCube-sized 3D allocation that holds ColorData as RGB F32_3 elements. The allocation is
+ * recreated when a cube with a different lattice size is set.
  */
-class FloatLut3dAlloc(rs: RenderScript) : RsResource {
+class FloatLut3dAlloc(private val rs: RenderScript) : RsResource {
 
-    val alloc: Allocation =
-            Allocation.createTyped(rs, lut3dType(rs)).apply { setAutoPadding(true) }
+    private var lutAlloc: Allocation = createLutAlloc(rs, ColorCube.N)
+
+    /**
+     * Lattice points per side of the current allocation.
+     */
+    val n: Int
+        get() = lutAlloc.type.x
+
+    val alloc: Allocation
         get() {
             check(!destroyed)
             if (currentCube == null) {
                 setColorCube(IdentityCube)
             }
-            return field
+            return lutAlloc
         }
 
-    private var buffer = FloatArray(ColorCube.N_VALUES_RGB)
     private var currentCube: ColorCube? = null
     private var destroyed = false
 
+    /**
+     * The cube's values are already packed RGB floats, so they go straight into the allocation.
+     */
     fun setColorCube(cube: ColorCube) {
         check(!destroyed)
         if (currentCube != cube) {
-            Util.copyColorCubeIntoFloatArray(cube, buffer)
+            if (cube.n != n) {
+                lutAlloc.destroy()
+                lutAlloc = createLutAlloc(rs, cube.n)
+            }
+            lutAlloc.copyFrom(cube.values)
             currentCube = cube
         }
     }
@@ -43,18 +55,16 @@ class FloatLut3dAlloc(rs: RenderScript) : RsResource {
     override fun destroy() {
         if (!destroyed) {
             reset()
-            alloc.destroy()
-            buffer = emptyFloatArray()
+            lutAlloc.destroy()
             destroyed = true
         }
     }
 
     companion object {
-        private fun lut3dType(rs: RenderScript) =
-                Type.createXYZ(rs, Element.F32_3(rs),
-                        ColorCube.N,
-                        ColorCube.N,
-                        ColorCube.N
-                )
+        private fun lut3dType(rs: RenderScript, n: Int) =
+                Type.createXYZ(rs, Element.F32_3(rs), n, n, n)
+
+        private fun createLutAlloc(rs: RenderScript, n: Int) =
+                Allocation.createTyped(rs, lut3dType(rs, n)).apply { setAutoPadding(true) }
     }
 }
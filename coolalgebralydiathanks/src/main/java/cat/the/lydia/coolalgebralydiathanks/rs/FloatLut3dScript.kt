@@ -24,6 +24,7 @@ class FloatLut3dScript(rs: RenderScript) : RsResource {
     fun forEach(colorAlloc: Allocation) {
         check(!destroyed)
         script._g_lut_alloc = lut3dAlloc.alloc
+        script._g_n = lut3dAlloc.n
         when (colorAlloc.element) {
             F32_3 -> script.forEach_apply_float3(colorAlloc, colorAlloc)
             RGBA_8888 -> script.forEach_apply_rgba_8888(colorAlloc, colorAlloc)
@@ -27,14 +27,13 @@ object RsFriend {
     lateinit var element: Element
     private lateinit var lut3dScript: ScriptIntrinsic3DLUT
     private lateinit var lut3dAlloc: Allocation
-    private val lutIntArrayBuffer = IntArray(ColorCube.N_COLORS)
+    private var lutIntArrayBuffer = IntArray(ColorCube.N_COLORS)
     lateinit var cachedColorAlloc: Allocation
     lateinit var cachedColorsIntArrayBuffer: IntArray
     lateinit var cachedColorsFloatArrayBuffer: FloatArray
     var initialized = false
 
     private lateinit var custom_lut_script: ScriptC_lut3d
-    private val lutFloatArrayBuffer = FloatArray(ColorCube.N_COLORS * 3)
 
     var use_custom_script = true
 
@@ -44,22 +43,14 @@ object RsFriend {
         element = if (use_custom_script) Element.F32_3(
             rs
         ) else Element.RGBA_8888(rs)
-        val lut3dType = Type.createXYZ(
-            rs,
-            element,
-            ColorCube.N,
-            ColorCube.N,
-            ColorCube.N
-        )
-        lut3dAlloc = Allocation.createTyped(rs, lut3dType)
+        lut3dAlloc = createLut3dAlloc(ColorCube.N)
 
         cachedColorAlloc = Allocation.createSized(rs, element, 1)
         cachedColorsIntArrayBuffer = IntArray(1)
         cachedColorsFloatArrayBuffer = FloatArray(1)
 
         if (use_custom_script) {
-            custom_lut_script = ScriptC_lut3d(rs)//.also { it._N = ColorCube.N }
-            lut3dAlloc.setAutoPadding(true)
+            custom_lut_script = ScriptC_lut3d(rs)
         } else {
             lut3dScript = ScriptIntrinsic3DLUT.create(
                 rs,
@@ -70,21 +61,33 @@ object RsFriend {
         initialized = true
     }
 
+    private fun createLut3dAlloc(n: Int): Allocation =
+            Allocation.createTyped(rs, Type.createXYZ(rs, element, n, n, n)).also {
+                if (use_custom_script) it.setAutoPadding(true)
+            }
+
+    /**
+     * The LUT allocation follows the size of the last cube we applied, so we only reallocate when
+     * switching between cube sizes.
+     */
+    private fun ensureLut3dAlloc(n: Int) {
+        if (lut3dAlloc.type.x != n) {
+            lut3dAlloc.destroy()
+            lut3dAlloc = createLut3dAlloc(n)
+            if (!use_custom_script) {
+                lutIntArrayBuffer = IntArray(n * n * n)
+            }
+        }
+    }
+
     private fun setLutData(cube: ColorCube) {
+        ensureLut3dAlloc(cube.n)
         if (use_custom_script) {
-            var n = 0
-            cube.colors.forEach { color ->
-                lutFloatArrayBuffer[n++] = color.r.value
-                lutFloatArrayBuffer[n++] = color.g.value
-                lutFloatArrayBuffer[n++] = color.b.value
-            }
-            lut3dAlloc.copyFrom(lutFloatArrayBuffer)
+            lut3dAlloc.copyFrom(cube.values)
+            custom_lut_script._g_n = cube.n
             custom_lut_script._g_lut_alloc = lut3dAlloc
         } else {
-            cube.colors.forEachIndexed { index, color ->
-                lutIntArrayBuffer[index] =
-                    Util.packColor8888(color)
-            }
+            Util.copyColorCubeAsPackedRsColors(cube, lutIntArrayBuffer)
             lut3dAlloc.copyFromUnchecked(
                 lutIntArrayBuffer
             )
@@ -94,21 +97,25 @@ object RsFriend {
         }
     }
 
-    private fun colorsToAllocation(colors: List<Color>): Allocation {
-        if (cachedColorAlloc.type.count != colors.size) {
+    private fun ensureCachedColorAlloc(count: Int) {
+        if (cachedColorAlloc.type.count != count) {
             cachedColorAlloc.destroy()
             cachedColorAlloc = Allocation.createSized(
                 rs,
-                element, colors.size
+                element, count
             )
             if (use_custom_script) {
                 cachedColorAlloc.setAutoPadding(true)
-                cachedColorsFloatArrayBuffer = FloatArray(colors.size * 3)
+                cachedColorsFloatArrayBuffer = FloatArray(count * 3)
 
             } else {
-                cachedColorsIntArrayBuffer = IntArray(colors.size)
+                cachedColorsIntArrayBuffer = IntArray(count)
             }
         }
+    }
+
+    private fun colorsToAllocation(colors: List<Color>): Allocation {
+        ensureCachedColorAlloc(colors.size)
         if (use_custom_script) {
             var n = 0
             colors.forEach { color ->
@@ -179,7 +186,31 @@ object RsFriend {
 
 
 
-    fun copyColorCubeToLutAlloc(cube: ColorCube, lutAlloc: Allocation) {
-
+    /**
+     * Apply a ColorCube to colors [from, to) stored as interleaved RGB floats, writing the results
+     * to the same positions in dst, without going through Colors. Colors are packed and unpacked
+     * the same way as in applyColorCubeToColors().
+     */
+    fun applyColorCubeToRgb(cube: ColorCube, src: FloatArray, dst: FloatArray, from: Int, to: Int) {
+        val count = to - from
+        if (count <= 0) return
+        ensureCachedColorAlloc(count)
+        if (use_custom_script) {
+            src.copyInto(cachedColorsFloatArrayBuffer, 0, from * 3, to * 3)
+            cachedColorAlloc.copyFrom(cachedColorsFloatArrayBuffer)
+        } else {
+            Util.copyRgbAsPackedRsColors(src, from, cachedColorsIntArrayBuffer, count)
+            cachedColorAlloc.copyFromUnchecked(cachedColorsIntArrayBuffer)
+        }
+        setLutData(cube)
+        if (use_custom_script) {
+            custom_lut_script.forEach_apply_float3(cachedColorAlloc, cachedColorAlloc)
+            cachedColorAlloc.copyTo(cachedColorsFloatArrayBuffer)
+            cachedColorsFloatArrayBuffer.copyInto(dst, from * 3)
+        } else {
+            lut3dScript.forEach(cachedColorAlloc, cachedColorAlloc)
+            cachedColorAlloc.copy1DRangeToUnchecked(0, count, cachedColorsIntArrayBuffer)
+            Util.copyPackedRsColorsIntoRgb(cachedColorsIntArrayBuffer, count, dst, from)
+        }
     }
 }
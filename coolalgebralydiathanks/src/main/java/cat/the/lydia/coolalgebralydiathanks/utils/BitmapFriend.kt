@@ -5,6 +5,7 @@ import androidx.annotation.ColorInt
 import androidx.core.graphics.get
 import cat.the.lydia.coolalgebralydiathanks.Bounded
 import cat.the.lydia.coolalgebralydiathanks.Color
+import cat.the.lydia.coolalgebralydiathanks.ColorIntData
 import cat.the.lydia.coolalgebralydiathanks.Photo
 import kotlin.math.roundToInt
 
@@ -34,7 +35,7 @@ object BitmapFriend {
                     .map(::colorIntToColor)
 
     fun bitmapToPhoto(b: Bitmap): Photo =
-            Photo(bitmapToColors(b), b.width, b.height)
+            Photo(ColorIntData(Util.bitmapToColorInts(b)), b.width, b.height)
 
     fun colorsToBitmap(cs: List<Color>, w: Int, h: Int): Bitmap =
             Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888)
@@ -44,6 +45,5 @@ object BitmapFriend {
                                 .also { setPixels(it, 0, 0, 0, 0, w, h) }
                     }
 
-    fun photoToBitmap(p: Photo): Bitmap =
-            colorsToBitmap(p.colors, p.width, p.height)
+    fun photoToBitmap(p: Photo): Bitmap = Util.photoToBitmap(p)
 }
@@ -0,0 +1,209 @@
+package cat.the.lydia.coolalgebralydiathanks.utils
+
+import cat.the.lydia.coolalgebralydiathanks.Bounded
+import cat.the.lydia.coolalgebralydiathanks.ColorCube
+import cat.the.lydia.coolalgebralydiathanks.ColorData
+import cat.the.lydia.coolalgebralydiathanks.RgbFloatData
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.math.abs
+import kotlin.math.log10
+
+/**
+ * How different two same-sized ColorData are, over all of their RGB values.
+ *
+ * Comparisons run in parallel chunks over primitive RGB floats. Cubes and RgbFloatData are read in
+ * place, and anything else is copied a chunk at a time, so no Colors are created.
+ */
+class ColorDiff private constructor(
+        /**
+         * Number of colors compared.
+         */
+        val size: Int,
+        /**
+         * Largest absolute difference of any value.
+         */
+        val maxError: Float,
+        /**
+         * Mean absolute difference over all values.
+         */
+        val meanError: Double,
+        /**
+         * Mean squared difference over all values.
+         */
+        val meanSquaredError: Double,
+        /**
+         * Index of the first color with a value that differs by [epsilon] or more, or -1.
+         */
+        val firstDifference: Int,
+        val epsilon: Float
+) {
+    /**
+     * Peak signal-to-noise ratio in dB with a peak of 1. Infinite for identical data.
+     */
+    val psnr: Double
+        get() = if (meanSquaredError == 0.0) Double.POSITIVE_INFINITY
+        else 10 * log10(1 / meanSquaredError)
+
+    /**
+     * True if every value is within [epsilon].
+     */
+    val isSame: Boolean
+        get() = firstDifference < 0
+
+    override fun toString(): String = "ColorDiff(size=$size, maxError=$maxError, " +
+            "meanError=$meanError, psnr=$psnr, firstDifference=$firstDifference)"
+
+    /**
+     * Running totals for one chunk.
+     */
+    private class Partial(
+            var maxError: Float = 0f,
+            var sumError: Double = 0.0,
+            var sumSquaredError: Double = 0.0,
+            var firstDifference: Int = -1
+    )
+
+    companion object {
+
+        /**
+         * Compute all the metrics for a and b. They must be the same size.
+         */
+        fun between(
+                a: ColorData,
+                b: ColorData,
+                epsilon: Float = Bounded.BOUNDED_EPS,
+                executor: ExecutorService = Util.executor
+        ): ColorDiff {
+            require(a.size == b.size) { "can't diff ColorData of size ${a.size} and ${b.size}" }
+            val partials = forEachChunk(a, b, executor) { aValues, aOffset, bValues, bOffset, n ->
+                diffChunk(aValues, aOffset, bValues, bOffset, n, epsilon)
+            }
+            var maxError = 0f
+            var sumError = 0.0
+            var sumSquaredError = 0.0
+            var first = -1
+            partials.forEachIndexed { chunk, p ->
+                maxError = maxOf(maxError, p.maxError)
+                sumError += p.sumError
+                sumSquaredError += p.sumSquaredError
+                if (first < 0 && p.firstDifference >= 0) {
+                    first = chunk * CHUNK_SIZE + p.firstDifference / N_CHANNELS_RGB
+                }
+            }
+            val nValues = a.size.toDouble() * N_CHANNELS_RGB
+            return ColorDiff(a.size, maxError, sumError / nValues, sumSquaredError / nValues,
+                    first, epsilon)
+        }
+
+        /**
+         * True if every value of a is within [epsilon] of b. Unlike between() this stops as soon
+         * as any chunk finds a difference.
+         */
+        fun same(
+                a: ColorData,
+                b: ColorData,
+                epsilon: Float = Bounded.BOUNDED_EPS,
+                executor: ExecutorService = Util.executor
+        ): Boolean {
+            if (a === b) return true
+            if (a.size != b.size) return false
+            val different = AtomicBoolean(false)
+            forEachChunk(a, b, executor, different) { aValues, aOffset, bValues, bOffset, n ->
+                if (!sameChunk(aValues, aOffset, bValues, bOffset, n, epsilon)) {
+                    different.set(true)
+                }
+            }
+            return !different.get()
+        }
+
+        /**
+         * Run [f] on each chunk of both ColorData as RGB floats, in parallel if there is more than
+         * one chunk, and return the results in chunk order. Chunks that haven't started yet are
+         * skipped once [stop] is set.
+         */
+        private inline fun <T> forEachChunk(
+                a: ColorData,
+                b: ColorData,
+                executor: ExecutorService,
+                stop: AtomicBoolean? = null,
+                crossinline f: (FloatArray, Int, FloatArray, Int, Int) -> T
+        ): List<T> {
+            val aValues = valuesOf(a)
+            val bValues = valuesOf(b)
+            val chunk: (Int) -> T = { start ->
+                val count = CHUNK_SIZE.coerceAtMost(a.size - start)
+                val n = count * N_CHANNELS_RGB
+                val aChunk = aValues ?: FloatArray(n).also { a.copyRgbInto(it, 0, start, count) }
+                val bChunk = bValues ?: FloatArray(n).also { b.copyRgbInto(it, 0, start, count) }
+                val aOffset = if (aValues != null) start * N_CHANNELS_RGB else 0
+                val bOffset = if (bValues != null) start * N_CHANNELS_RGB else 0
+                f(aChunk, aOffset, bChunk, bOffset, n)
+            }
+            if (a.size <= CHUNK_SIZE) return listOf(chunk(0))
+
+            val tasks = ArrayList<Future<T?>>()
+            for (start in 0 until a.size step CHUNK_SIZE) {
+                tasks += executor.submit(Callable {
+                    if (stop?.get() == true) null else chunk(start)
+                })
+            }
+            return tasks.mapNotNull { it.get() }
+        }
+
+        /**
+         * Primitive storage we can read in place, if there is one.
+         */
+        private fun valuesOf(data: ColorData): FloatArray? = when (data) {
+            is ColorCube -> data.values
+            is RgbFloatData -> data.values
+            else -> null
+        }
+
+        private fun diffChunk(
+                a: FloatArray,
+                aOffset: Int,
+                b: FloatArray,
+                bOffset: Int,
+                n: Int,
+                epsilon: Float
+        ): Partial {
+            val p = Partial()
+            for (i in 0 until n) {
+                val x = a[aOffset + i]
+                val y = b[bOffset + i]
+                val error = abs(x - y)
+                if (error > p.maxError) p.maxError = error
+                p.sumError += error
+                p.sumSquaredError += error.toDouble() * error
+                if (p.firstDifference < 0 && !withinEpsilon(x, y, epsilon)) p.firstDifference = i
+            }
+            return p
+        }
+
+        private fun sameChunk(
+                a: FloatArray,
+                aOffset: Int,
+                b: FloatArray,
+                bOffset: Int,
+                n: Int,
+                epsilon: Float
+        ): Boolean {
+            for (i in 0 until n) {
+                if (!withinEpsilon(a[aOffset + i], b[bOffset + i], epsilon)) return false
+            }
+            return true
+        }
+
+        /**
+         * Same test as Bounded.approxEquals.
+         */
+        @Suppress("NOTHING_TO_INLINE")
+        private inline fun withinEpsilon(x: Float, y: Float, epsilon: Float) =
+                x == y || abs(x - y) < epsilon
+
+        private const val CHUNK_SIZE = 1 shl 14
+    }
+}
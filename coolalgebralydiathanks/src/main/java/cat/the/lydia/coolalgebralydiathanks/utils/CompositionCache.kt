@@ -0,0 +1,109 @@
+package cat.the.lydia.coolalgebralydiathanks.utils
+
+import cat.the.lydia.coolalgebralydiathanks.ColorCube
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A bounded LRU cache of cube compositions, so composing the same two cubes again is a lookup
+ * instead of another pass over the lattice.
+ *
+ * Entries are keyed by the content fingerprints of the left and right cubes, so equal cubes hit
+ * even when they're different objects. Fingerprints can collide, so a hit is only a hit if the
+ * cubes really are quantizedEquals(), which means entries hold on to their left and right cubes
+ * too.
+ *
+ * The budget counts the lattice values of the left, right and result cubes of every entry, even
+ * though cubes are often shared between entries, so real usage is at most the budget. Least
+ * recently used entries are dropped to stay under it, and a single entry bigger than the whole
+ * budget is never stored.
+ *
+ * Safe to use from any thread. Lookups and updates are synchronized, but composing happens
+ * outside the lock, so two threads missing on the same pair at once both compose it.
+ */
+class CompositionCache(val maxBytes: Long = DEFAULT_MAX_BYTES) {
+
+    private class Key(val left: Long, val right: Long) {
+        override fun equals(other: Any?): Boolean =
+                other is Key && left == other.left && right == other.right
+
+        override fun hashCode(): Int = Fingerprint.toHashCode(left * 31 + right)
+    }
+
+    private class Entry(val left: ColorCube, val right: ColorCube, val result: ColorCube) {
+        val bytes: Long = (left.values.size + right.values.size + result.values.size) * 4L
+    }
+
+    private val entries = LinkedHashMap<Key, Entry>(16, 0.75f, true)
+    private var currentBytes = 0L
+    private val hitCount = AtomicLong()
+    private val missCount = AtomicLong()
+    private val evictionCount = AtomicLong()
+
+    val hits: Long
+        get() = hitCount.get()
+
+    val misses: Long
+        get() = missCount.get()
+
+    val evictions: Long
+        get() = evictionCount.get()
+
+    val size: Int
+        get() = synchronized(this) { entries.size }
+
+    val bytes: Long
+        get() = synchronized(this) { currentBytes }
+
+    /**
+     * The cached [left] after [right], or the result of [compose] which is then cached.
+     */
+    fun getOrCompose(left: ColorCube, right: ColorCube, compose: () -> ColorCube): ColorCube {
+        val key = Key(left.fingerprint, right.fingerprint)
+        synchronized(this) {
+            val entry = entries[key]
+            if (entry != null &&
+                    entry.left.quantizedEquals(left) && entry.right.quantizedEquals(right)) {
+                hitCount.incrementAndGet()
+                return entry.result
+            }
+        }
+        missCount.incrementAndGet()
+        val result = compose()
+        put(key, Entry(left, right, result))
+        return result
+    }
+
+    fun clear() = synchronized(this) {
+        entries.clear()
+        currentBytes = 0
+    }
+
+    private fun put(key: Key, entry: Entry) {
+        if (entry.bytes > maxBytes) return
+        synchronized(this) {
+            entries.put(key, entry)?.let { currentBytes -= it.bytes }
+            currentBytes += entry.bytes
+            val eldest = entries.values.iterator()
+            while (currentBytes > maxBytes) {
+                currentBytes -= eldest.next().bytes
+                eldest.remove()
+                evictionCount.incrementAndGet()
+            }
+        }
+    }
+
+    override fun toString(): String =
+            "CompositionCache(size=$size, bytes=$bytes, hits=$hits, misses=$misses)"
+
+    companion object {
+        /**
+         * 16MB, which is a few hundred compositions of default-sized cubes.
+         */
+        const val DEFAULT_MAX_BYTES = 16L shl 20
+
+        /**
+         * The cache ColorFunc.times() uses.
+         */
+        val default = CompositionCache()
+    }
+}
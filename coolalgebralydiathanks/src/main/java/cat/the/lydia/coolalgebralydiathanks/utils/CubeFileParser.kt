@@ -4,18 +4,17 @@ import android.content.Context
 import android.util.Log
 import androidx.annotation.RawRes
 import cat.the.lydia.coolalgebralydiathanks.Bounded
-import cat.the.lydia.coolalgebralydiathanks.Color
 import cat.the.lydia.coolalgebralydiathanks.ColorCube
 import java.io.BufferedReader
 import java.io.IOException
 import java.io.InputStream
 import java.io.InputStreamReader
-import kotlin.collections.ArrayList
 
 /**
  * Code borrowed with love from:
  * https://github.com/Vensent/RsLutDemo/blob/master/app/src/main/java/com/vensent/lut/LoadCubeFileActivity.java
- * todo: This is finicky and only works on luts pre-converted to 17^3.
+ * Any LUT_3D_SIZE that ColorCube supports can be loaded. Use ColorCube.resample() to get a cube at
+ * the size you want to render with.
  */
 object CubeFileParser {
 
@@ -26,10 +25,12 @@ object CubeFileParser {
     }
 
     private fun parseCubeFile(inputStream: InputStream): ColorCube {
-        var data = ArrayList<Color>(ColorCube.N_COLORS)
+        var data = FloatArray(ColorCube.N_VALUES_RGB)
+        var nValues = 0
         var lut3dSize = 0
         var reader: BufferedReader? = null
         var i = 0
+        var error: Exception? = null
         try {
             reader = BufferedReader(InputStreamReader(inputStream))
             // do reading, usually loop until end of file reading
@@ -43,7 +44,7 @@ object CubeFileParser {
                 if (parts.isEmpty()) {
                     continue
                 }
-                if (parts[0] == "title" || line.toLowerCase().startsWith("title") || line.toLowerCase().startsWith("lut_3d_size")) {
+                if (parts[0] == "title" || line.toLowerCase().startsWith("title")) {
                     // optional, or do nothing.
                 } else if (parts[0] == "lut_1d_size" || parts[0] == "lut_2d_size") {
                     throw Exception("Unsupported Iridas .cube lut tag: " + parts[0])
@@ -52,7 +53,7 @@ object CubeFileParser {
                         throw Exception("Malformed LUT_3D_SIZE tag in Iridas .cube lut.")
                     }
                     lut3dSize = parts[1].toInt()
-                    data = ArrayList<Color>(lut3dSize * lut3dSize * lut3dSize)
+                    data = FloatArray(lut3dSize * lut3dSize * lut3dSize * N_CHANNELS_RGB)
                 } else if (parts[0] == "domain_min") {
                     if (parts.size != 4 || parts[1].toFloat() != 0.0f || parts[2].toFloat() != 0.0f || parts[3].toFloat() != 0.0f) {
                         throw Exception("domain_min is not correct.")
@@ -63,23 +64,31 @@ object CubeFileParser {
                     }
                 } else {
                     // It must be a float triple!
-                    if (data == null || data.isEmpty()) {
-  //                      continue
-                      //  throw Exception("The file doesn't contain 'lut_3d_size'.")
+                    if (lut3dSize == 0) {
+                        throw Exception("The file doesn't contain 'lut_3d_size'.")
                     }
 
-                    // In a .cube file, each data line contains 3 floats.
-                    // Please note: the blue component goes first!!!
-                    data.add( getRGBColorValue(parts[0].toFloat(), parts[1].toFloat(), parts[2].toFloat()))
+                    // In a .cube file, each data line contains 3 floats, with red changing fastest.
+                    // That is the same order as our lattice, so they go straight in. Lines past
+                    // the end are only counted, so the check below catches them.
+                    if (nValues < data.size) {
+                        data[nValues] = Bounded.checked(parts[0].toFloat()).value
+                        data[nValues + 1] = Bounded.checked(parts[1].toFloat()).value
+                        data[nValues + 2] = Bounded.checked(parts[2].toFloat()).value
+                    }
+                    nValues += N_CHANNELS_RGB
                 }
             }
         } catch (e: IOException) {
             //log the exception
+            error = e
         } catch (e: NumberFormatException) {
             Log.d(TAG, "Converting string to digit failed.")
             e.printStackTrace()
+            error = e
         } catch (e: Exception) {
             e.printStackTrace()
+            error = e
         } finally {
             if (reader != null) {
                 try {
@@ -89,11 +98,13 @@ object CubeFileParser {
                 }
             }
         }
-        return ColorCube(data)
-    }
-
-    private fun getRGBColorValue(r: Float, g: Float, b: Float): Color {
-        return Color(Bounded(r), Bounded(g), Bounded(b))
+        // fail rather than return a cube that's partly black
+        if (error != null) throw IllegalArgumentException("malformed .cube file", error)
+        require(lut3dSize > 0) { "no LUT_3D_SIZE in .cube file" }
+        require(nValues == data.size) {
+            "expected ${data.size} values for LUT_3D_SIZE $lut3dSize got $nValues"
+        }
+        return ColorCube.fromFloatArray(data)
     }
 
     private const val TAG = "CubeFileParser"
@@ -0,0 +1,71 @@
+package cat.the.lydia.coolalgebralydiathanks.utils
+
+import cat.the.lydia.coolalgebralydiathanks.Bounded
+import cat.the.lydia.coolalgebralydiathanks.ColorData
+
+/**
+ * 64-bit content fingerprints for color data.
+ *
+ * Every value is quantized with Bounded.quantize() before hashing, so data that compares equal
+ * with Util.sameQuantizedValues always has the same fingerprint, and a fingerprint mismatch means
+ * the data is definitely different. Matching fingerprints still need a real comparison to rule
+ * out collisions.
+ */
+object Fingerprint {
+
+    /**
+     * Fingerprint interleaved RGB floats.
+     */
+    fun of(values: FloatArray): Long = finish(update(SEED, values, 0, values.size), values.size)
+
+    /**
+     * Fingerprint any ColorData, a chunk at a time through RGB floats. Gives the same result as
+     * fingerprinting the same values held in a FloatArray.
+     */
+    fun of(data: ColorData): Long {
+        val chunk = CHUNK_SIZE.coerceAtMost(data.size)
+        val buffer = FloatArray(chunk * N_CHANNELS_RGB)
+        var h = SEED
+        var start = 0
+        while (start < data.size) {
+            val count = chunk.coerceAtMost(data.size - start)
+            data.copyRgbInto(buffer, 0, start, count)
+            h = update(h, buffer, 0, count * N_CHANNELS_RGB)
+            start += count
+        }
+        return finish(h, data.size * N_CHANNELS_RGB)
+    }
+
+    /**
+     * Combine a fingerprint with extra fields, e.g. Photo dimensions.
+     */
+    fun combine(fingerprint: Long, value: Int): Long = mix(fingerprint * PRIME + value)
+
+    /**
+     * Fold a fingerprint down to an Int for hashCode().
+     */
+    fun toHashCode(fingerprint: Long): Int = (fingerprint xor (fingerprint ushr 32)).toInt()
+
+    // FNV-1a over the quantized values
+    private fun update(hash: Long, values: FloatArray, from: Int, to: Int): Long {
+        var h = hash
+        for (n in from until to) {
+            h = (h xor Bounded(values[n]).quantize().toLong()) * PRIME
+        }
+        return h
+    }
+
+    private fun finish(hash: Long, count: Int): Long = mix(hash xor count.toLong())
+
+    // murmur3 fmix64, so similar data doesn't end up with similar fingerprints
+    private fun mix(hash: Long): Long {
+        var h = hash
+        h = (h xor (h ushr 33)) * -0xae502812aa7333L
+        h = (h xor (h ushr 33)) * -0x3b314601e57a13adL
+        return h xor (h ushr 33)
+    }
+
+    private const val SEED = -0x340d631b7bdddcdbL
+    private const val PRIME = 0x100000001b3L
+    private const val CHUNK_SIZE = 1024
+}
@@ -0,0 +1,91 @@
+package cat.the.lydia.coolalgebralydiathanks.utils
+
+/**
+ * IEEE binary16 half-float conversion with lookup tables.
+ *
+ * Halves have an 11-bit significand, so a value in [0,1] is stored to within 2^-12 (about
+ * 0.00024) of the float, which is 16x finer than a U8 step. That's plenty for display-referred
+ * color, at half the memory of floats.
+ *
+ * Half to float is one lookup in a 64K table, which is what the kernels use. Float to half uses the
+ * usual 512-entry base and shift tables indexed by sign and exponent, and rounds to nearest.
+ */
+object Half {
+
+    /**
+     * The most a value in [0,1] can change by being stored as a half, 2^-12.
+     */
+    const val MAX_UNIT_ERROR = 1f / 4096
+
+    /**
+     * Convert a half, stored as the bits of a Short, to a float.
+     */
+    @Suppress("NOTHING_TO_INLINE")
+    inline fun toFloat(h: Short): Float = HALF_TO_FLOAT[h.toInt() and 0xffff]
+
+    /**
+     * Convert a float to the nearest half.
+     */
+    fun fromFloat(f: Float): Short {
+        if (f.isNaN()) return HALF_NAN
+        val bits = f.toRawBits()
+        val i = bits ushr 23
+        val shift = SHIFT[i].toInt()
+        val mantissa = (bits and 0x7fffff) or IMPLICIT[i]
+        return (BASE[i] + ((mantissa + (1 shl (shift - 1))) ushr shift)).toShort()
+    }
+
+    fun toHalfArray(fs: FloatArray): ShortArray = ShortArray(fs.size) { fromFloat(fs[it]) }
+
+    fun toFloatArray(hs: ShortArray): FloatArray = FloatArray(hs.size) { toFloat(hs[it]) }
+
+    @PublishedApi
+    internal val HALF_TO_FLOAT = FloatArray(1 shl 16) { decode(it) }
+
+    private const val HALF_NAN: Short = 0x7e00
+    private val BASE = IntArray(512)
+    private val SHIFT = ByteArray(512)
+    private val IMPLICIT = IntArray(512)
+
+    init {
+        for (i in 0 until 512) {
+            val sign = (i and 0x100) shl 7
+            val e = (i and 0xff) - 127
+            when {
+                // too small for a subnormal half, always rounds to zero
+                e < -25 -> {
+                    BASE[i] = sign
+                    SHIFT[i] = 25
+                    IMPLICIT[i] = 0x800000
+                }
+                // subnormal half, the implicit bit becomes part of the mantissa
+                e < -14 -> {
+                    BASE[i] = sign
+                    SHIFT[i] = (-e - 1).toByte()
+                    IMPLICIT[i] = 0x800000
+                }
+                // normal half, rounding can carry into the exponent which is what we want
+                e <= 15 -> {
+                    BASE[i] = sign or ((e + 15) shl 10)
+                    SHIFT[i] = 13
+                }
+                // overflow and infinity
+                else -> {
+                    BASE[i] = sign or 0x7c00
+                    SHIFT[i] = 24
+                }
+            }
+        }
+    }
+
+    private fun decode(h: Int): Float {
+        val sign = if (h and 0x8000 != 0) -1f else 1f
+        val e = (h ushr 10) and 0x1f
+        val m = h and 0x3ff
+        return sign * when (e) {
+            0 -> Math.scalb(m.toFloat(), -24)
+            0x1f -> if (m == 0) Float.POSITIVE_INFINITY else Float.NaN
+            else -> Math.scalb(1f + m / 1024f, e - 15)
+        }
+    }
+}
@@ -6,6 +6,7 @@ import androidx.annotation.ColorInt
 import androidx.annotation.IntRange
 import cat.the.lydia.coolalgebralydiathanks.*
 import java.util.concurrent.*
+import kotlin.math.abs
 import kotlin.math.roundToInt
 import kotlin.random.Random
 
@@ -32,6 +33,14 @@ object Util {
             )
     }
 
+    /**
+     * Pool for the fork/join kernels, with one worker per core. From 24 on the executor already is
+     * one.
+     */
+    internal val forkJoinPool: ForkJoinPool by lazy {
+        executor as? ForkJoinPool ?: ForkJoinPool(Runtime.getRuntime().availableProcessors())
+    }
+
     @ColorInt
     fun rgb(
             red: Int,
@@ -59,11 +68,9 @@ object Util {
 
     fun floatIsU8(f: Float): Boolean = f == u8ToNormal(normalToU8(f))
 
-    fun boundedIsU8(b: Bounded) = b == u8ToBounded(normalToU8(b.value))
+    fun boundedIsU8(b: Bounded) = b approxEquals u8ToBounded(normalToU8(b.value))
 
-    fun clampBoundedToU8(b: Bounded) =
-            if (boundedIsU8(b)) b
-            else Bounded(u8ToNormal(normalToU8(b.value)))
+    fun clampBoundedToU8(b: Bounded) = Bounded(u8ToNormal(normalToU8(b.value)))
 
     fun colorIsU8(color: Color): Boolean =
             boundedIsU8(color.r) && boundedIsU8(color.g) && boundedIsU8(color.b)
@@ -100,7 +107,7 @@ object Util {
     )
 
     fun normalRgbToColor(r: Float, g: Float, b: Float): Color =
-            Color(Bounded(r), Bounded(g), Bounded(b))
+            Color(Bounded.checked(r), Bounded.checked(g), Bounded.checked(b))
 
     @ColorInt
     fun bitmapToColorInts(b: Bitmap): IntArray = IntArray(b.width * b.height).also {
@@ -114,30 +121,28 @@ object Util {
 
     fun bitmapToColors(b: Bitmap): List<Color> = bitmapToColorInts(b).map(::colorIntToColor)
 
-    fun bitmapToPhoto(b: Bitmap) = Photo(bitmapToColors(b), b.width, b.height)
+    fun bitmapToPhoto(b: Bitmap) = Photo(ColorIntData(bitmapToColorInts(b)), b.width, b.height)
 
     fun photoToBitmap(p: Photo): Bitmap =
-            Bitmap.createBitmap(p.width, p.height, Bitmap.Config.ARGB_8888).apply {
-                setPixels(
-                        p.colors.map(::colorToColorInt).toIntArray(),
-                        0, width, 0, 0, width, height
-                )
-            }
+            colorIntsToBitmap(IntArray(p.size).also { p.copyColorIntsInto(it) }, p.width, p.height)
 
     fun copyColorDataIntoFloatArray(data: ColorData, fs: FloatArray) {
         require(fs.size == data.size * N_CHANNELS_RGB)
-        var n = 0
-        data.colors.forEach { color ->
-            fs[n++] = color.r.value
-            fs[n++] = color.g.value
-            fs[n++] = color.b.value
-        }
+        data.copyRgbInto(fs)
     }
 
     fun copyColorCubeIntoFloatArray(cube: ColorCube, fs: FloatArray) {
-        require(fs.size == ColorCube.N_COLORS)
-        var n = 0
-        cube.colors.forEach { color ->
+        require(fs.size == cube.values.size)
+        cube.values.copyInto(fs)
+    }
+
+    fun colorsToFloatArray(colors: List<Color>): FloatArray =
+            FloatArray(colors.size * N_CHANNELS_RGB).also { copyColorsIntoFloatArray(colors, it) }
+
+    fun copyColorsIntoFloatArray(colors: List<Color>, fs: FloatArray, offset: Int = 0) {
+        require(offset + colors.size * N_CHANNELS_RGB <= fs.size)
+        var n = offset
+        colors.forEach { color ->
             fs[n++] = color.r.value
             fs[n++] = color.g.value
             fs[n++] = color.b.value
@@ -146,18 +151,205 @@ object Util {
 
     fun copyColorDataAsPackedRsColors(data: ColorData, buffer: IntArray) {
         require(data.size == buffer.size)
-        data.colors.forEachIndexed { n, color -> buffer[n] = packColor8888(color) }
+        // packColor8888 puts the channels where a ColorInt does, but always opaque
+        data.copyColorIntsInto(buffer)
+        for (n in buffer.indices) {
+            buffer[n] = buffer[n] or -0x1000000
+        }
     }
 
-    fun clampColorCubeToU8(c: ColorCube): ColorCube = ColorCube(c.colors.map(::clampColorToU8))
+    /**
+     * Pack [count] interleaved RGB colors starting at color [start] like packColor8888.
+     */
+    fun copyRgbAsPackedRsColors(fs: FloatArray, start: Int, buffer: IntArray, count: Int) {
+        require(count <= buffer.size)
+        var n = start * N_CHANNELS_RGB
+        for (i in 0 until count) {
+            buffer[i] = rgb(normalToU8(fs[n]), normalToU8(fs[n + 1]), normalToU8(fs[n + 2]))
+            n += N_CHANNELS_RGB
+        }
+    }
+
+    /**
+     * Unpack [count] colors like unpackColor8888 into interleaved RGB floats, starting at color
+     * [start].
+     */
+    fun copyPackedRsColorsIntoRgb(buffer: IntArray, count: Int, fs: FloatArray, start: Int) {
+        require((start + count) * N_CHANNELS_RGB <= fs.size)
+        var n = start * N_CHANNELS_RGB
+        for (i in 0 until count) {
+            val packed = buffer[i]
+            fs[n++] = u8ToNormal(blue(packed))
+            fs[n++] = u8ToNormal(green(packed))
+            fs[n++] = u8ToNormal(red(packed))
+        }
+    }
 
-    fun sameColorData(a: ColorData, b: ColorData) = a.colors == b.colors
+    fun copyColorCubeAsPackedRsColors(cube: ColorCube, buffer: IntArray) {
+        require(buffer.size == cube.size)
+        val fs = cube.values
+        for (n in buffer.indices) {
+            buffer[n] = rgb(
+                    normalToU8(fs[n * 3]),
+                    normalToU8(fs[n * 3 + 1]),
+                    normalToU8(fs[n * 3 + 2])
+            )
+        }
+    }
+
+    fun clampColorCubeToU8(c: ColorCube): ColorCube =
+            ColorCube(FloatArray(c.values.size) { u8ToNormal(normalToU8(c.values[it])) }, c.n)
+
+    /**
+     * Snap every value to the nearest U8 value, a plane at a time.
+     */
+    fun clampPlanarToU8(p: PlanarColorData): PlanarColorData =
+            PlanarColorData(clampPlaneToU8(p.r), clampPlaneToU8(p.g), clampPlaneToU8(p.b))
+
+    /**
+     * Same as u8ToNormal(normalToU8(f)) for values in [0,1], minus the rounding edge cases that
+     * keep roundToInt from vectorizing.
+     */
+    private fun clampPlaneToU8(plane: FloatArray): FloatArray {
+        val result = FloatArray(plane.size)
+        for (i in plane.indices) {
+            result[i] = (plane[i] * 255f + 0.5f).toInt() / 255f
+        }
+        return result
+    }
+
+    /**
+     * Quantize [count] planar colors starting at [start] to U8 ColorInts, starting at [dstOffset].
+     */
+    fun copyPlanarAsColorInts(
+            p: PlanarColorData,
+            @ColorInt dst: IntArray,
+            dstOffset: Int = 0,
+            start: Int = 0,
+            count: Int = p.size - start
+    ) {
+        require(dstOffset + count <= dst.size)
+        val r = p.r
+        val g = p.g
+        val b = p.b
+        for (i in 0 until count) {
+            val n = start + i
+            dst[dstOffset + i] = -0x1000000 or
+                    ((r[n] * 255f + 0.5f).toInt() shl 16) or
+                    ((g[n] * 255f + 0.5f).toInt() shl 8) or
+                    (b[n] * 255f + 0.5f).toInt()
+        }
+    }
+
+    /**
+     * Compare ColorData with the same epsilon as Bounded.approxEquals. This is the comparison to
+     * use for checking the algebra, where results only agree up to float error. It runs in
+     * parallel and stops at the first difference. Use ColorDiff.between() to find out how
+     * different the data is.
+     */
+    fun sameColorData(a: ColorData, b: ColorData): Boolean = ColorDiff.same(a, b)
+
+    /**
+     * Compare ColorData by quantized values. Unlike the epsilon comparison this is a real
+     * equivalence relation, and it agrees with Fingerprint, so it backs Photo.quantizedEquals().
+     */
+    fun sameQuantizedColorData(a: ColorData, b: ColorData): Boolean =
+            compareColorData(a, b, ::sameQuantizedValue)
+
+    /**
+     * Compare float values with the same epsilon as Bounded.
+     */
+    fun sameValues(a: FloatArray, b: FloatArray): Boolean = compareValues(a, b, ::sameValue)
+
+    /**
+     * Compare float values by their quantized values, consistent with Fingerprint.
+     */
+    fun sameQuantizedValues(a: FloatArray, b: FloatArray): Boolean =
+            compareValues(a, b, ::sameQuantizedValue)
+
+    private inline fun compareValues(
+            a: FloatArray,
+            b: FloatArray,
+            same: (Float, Float) -> Boolean
+    ): Boolean {
+        if (a === b) return true
+        if (a.size != b.size) return false
+        for (n in a.indices) {
+            if (!same(a[n], b[n])) return false
+        }
+        return true
+    }
+
+    /**
+     * Compare ColorData a chunk at a time through RGB floats, so primitive-backed data never has to
+     * create Colors.
+     */
+    private inline fun compareColorData(
+            a: ColorData,
+            b: ColorData,
+            same: (Float, Float) -> Boolean
+    ): Boolean {
+        if (a === b) return true
+        if (a.size != b.size) return false
+        val chunk = SAME_DATA_CHUNK_SIZE.coerceAtMost(a.size)
+        val aBuffer = FloatArray(chunk * N_CHANNELS_RGB)
+        val bBuffer = FloatArray(chunk * N_CHANNELS_RGB)
+        var start = 0
+        while (start < a.size) {
+            val count = chunk.coerceAtMost(a.size - start)
+            a.copyRgbInto(aBuffer, 0, start, count)
+            b.copyRgbInto(bBuffer, 0, start, count)
+            for (n in 0 until count * N_CHANNELS_RGB) {
+                if (!same(aBuffer[n], bBuffer[n])) return false
+            }
+            start += count
+        }
+        return true
+    }
+
+    private const val SAME_DATA_CHUNK_SIZE = 1024
+
+    private fun sameValue(a: Float, b: Float) = Bounded(a) approxEquals Bounded(b)
+
+    private fun sameQuantizedValue(a: Float, b: Float) =
+            Bounded(a).quantize() == Bounded(b).quantize()
 
     internal fun linearInterpolate(a: List<Color>, b: List<Color>, scale: Bounded): List<Color> =
             ArrayList<Color>(a.size).also {
                 a.forEachIndexed { n, x -> it.add(linearInterpolate(x, b[n], scale)) }
             }
 
+    /**
+     * Planar lerp. The scale special cases are checked once up front instead of per value, and the
+     * per-value "a approxEquals b" case is dropped since the lerp is within the epsilon there
+     * anyway. That leaves three branch-free counted loops.
+     */
+    internal fun linearInterpolate(
+            a: PlanarColorData,
+            b: PlanarColorData,
+            scale: Bounded
+    ): PlanarColorData {
+        require(a.size == b.size)
+        return when {
+            scale approxEquals Bounded.zero -> a
+            scale approxEquals Bounded.one -> b
+            else -> PlanarColorData(
+                    linearInterpolate(a.r, b.r, scale.value),
+                    linearInterpolate(a.g, b.g, scale.value),
+                    linearInterpolate(a.b, b.b, scale.value)
+            )
+        }
+    }
+
+    private fun linearInterpolate(a: FloatArray, b: FloatArray, scale: Float): FloatArray {
+        val result = FloatArray(a.size)
+        val inverse = 1 - scale
+        for (i in result.indices) {
+            result[i] = a[i] * inverse + b[i] * scale
+        }
+        return result
+    }
+
     internal fun linearInterpolate(a: Color, b: Color, scale: Bounded): Color = Color(
             linearInterpolate(a.r, b.r, scale),
             linearInterpolate(a.g, b.g, scale),
@@ -165,9 +357,9 @@ object Util {
     )
 
     private fun linearInterpolate(a: Bounded, b: Bounded, scale: Bounded): Bounded = when {
-        scale == Bounded.zero -> a
-        scale == Bounded.one -> b
-        a == b -> a
+        scale approxEquals Bounded.zero -> a
+        scale approxEquals Bounded.one -> b
+        a approxEquals b -> a
         else -> Bounded(linearInterpolate(a.value, b.value, scale.value))
     }
 
@@ -189,10 +381,11 @@ object Util {
     fun randomColors(n: Int): List<Color> = (0 until n).map { _ -> randomColor() }
     fun randomU8Colors(n: Int): List<Color> = randomColorInts(n).map(::colorIntToColor)
     fun randomColorData(n: Int): ColorData = ColorList(randomColors(n))
-    fun randomU8Photo(w: Int, h: Int): Photo = Photo(randomU8Colors(w * h), w, h)
-    fun randomPhoto(w: Int, h: Int): Photo = Photo(randomColors(w * h), w, h)
-    fun randomU8ColorCube(): ColorCube = ColorCube(randomU8Colors(ColorCube.N_COLORS))
-    fun randomColorCube(): ColorCube = ColorCube(randomColors(ColorCube.N_COLORS))
+    fun randomU8Photo(w: Int, h: Int): Photo = Photo(ColorIntData(randomColorInts(w * h)), w, h)
+    fun randomPhoto(w: Int, h: Int): Photo =
+            Photo(RgbFloatData(FloatArray(w * h * N_CHANNELS_RGB) { Random.nextFloat() }), w, h)
+    fun randomU8ColorCube(n: Int = ColorCube.N): ColorCube = ColorCube(randomU8Colors(n * n * n))
+    fun randomColorCube(n: Int = ColorCube.N): ColorCube = ColorCube(randomColors(n * n * n))
     fun randomColorCubes(n: Int) = Array<ColorCube>(n) { _ -> randomColorCube() }
     fun randomBitmap(w: Int, h: Int): Bitmap = colorIntsToBitmap(randomColorInts(w * h), w, h)
     fun randomBitmap(maxDim: Int): Bitmap =
@@ -201,11 +394,17 @@ object Util {
 
 
 /**
- * We can always freely promote a ColorFunc to a ColorCube.
+ * We can always freely promote a ColorFunc to a ColorCube. If the cubes have different lattice
+ * sizes the smaller one is resampled up to the bigger size first.
  */
 fun linearInterpolate(a: ColorFunc, b: ColorFunc, scale: Bounded): ColorCube = when {
-    scale == Bounded.zero -> a.toColorCube()
-    scale == Bounded.one -> b.toColorCube()
+    scale approxEquals Bounded.zero -> a.toColorCube()
+    scale approxEquals Bounded.one -> b.toColorCube()
     a == b -> a.toColorCube()
-    else -> ColorCube(Util.linearInterpolate(a.toColorCube().colors, b.toColorCube().colors, scale))
+    else -> {
+        val aCube = a.toColorCube()
+        val bCube = b.toColorCube()
+        val n = maxOf(aCube.n, bCube.n)
+        ColorCube(Util.linearInterpolate(aCube.resample(n).colors, bCube.resample(n).colors, scale))
+    }
 }
@@ -17,10 +17,8 @@
 // face.
 //
 
-// This is currently implemented at fixed 17^3 size.
-static const int N = 17; // ColorCube.N
-static const int3 g_dims = { N, N, N };
-static const float3 g_subdims = { N-1.0f, N-1.0f, N-1.0f };
+// Lattice points per side of g_lut_alloc (ColorCube.n). Set this whenever the LUT size changes.
+int g_n = 17;
 
 rs_allocation g_lut_alloc;
 
@@ -44,11 +42,12 @@ typedef struct Local_Position {
 // the origin.
 static Local_Position_t get_local_position(float3 color)
 {
-    float3 realPositionInIndexSpace = color * g_subdims;
+    float3 subdims = (float3){ g_n - 1.0f, g_n - 1.0f, g_n - 1.0f };
+    float3 realPositionInIndexSpace = color * subdims;
     float3 intPositionInIndexSpace = floor(realPositionInIndexSpace);
 
-    // 1 if position was N-1 and we mapped all the way to the end of the space, else 0f
-    float3 edge = step(g_subdims, intPositionInIndexSpace);
+    // 1 if position was n-1 and we mapped all the way to the end of the space, else 0f
+    float3 edge = step(subdims, intPositionInIndexSpace);
 
     int3 origin = convert_int3(intPositionInIndexSpace - edge);
     float3 offset = (realPositionInIndexSpace - intPositionInIndexSpace) + edge;
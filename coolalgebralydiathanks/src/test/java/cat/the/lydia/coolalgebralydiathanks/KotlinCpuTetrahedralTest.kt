@@ -0,0 +1,142 @@
+package cat.the.lydia.coolalgebralydiathanks
+
+import cat.the.lydia.coolalgebralydiathanks.implementation.KotlinCpuTetrahedral
+import cat.the.lydia.coolalgebralydiathanks.implementation.KotlinCpuTrilinear
+import cat.the.lydia.coolalgebralydiathanks.utils.ColorDiff
+import cat.the.lydia.coolalgebralydiathanks.utils.Util
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Ignore
+import org.junit.Test
+import java.lang.AssertionError
+import java.util.concurrent.ForkJoinPool
+import kotlin.math.pow
+
+class KotlinCpuTetrahedralTest {
+
+    @Test
+    fun identityAndLattice() {
+        for (n in listOf(ColorCube.MIN_N, 5, ColorCube.N, 33)) {
+            val identity = ColorCube.identity(n)
+            val colors = Util.randomColors(10000)
+            val result = KotlinCpuTetrahedral.applyCubeToColors(identity, colors)
+            assertTrue(result.toColorData().contentEquals(colors.toColorData()))
+
+            // lattice points come back out exactly, up to float error
+            val cube = Util.randomColorCube(n)
+            val lattice = KotlinCpuTetrahedral.applyCubeToColors(cube, identity.colors)
+            assertTrue(lattice.toColorData().contentEquals(cube))
+        }
+    }
+
+    @Test
+    fun matchesTrilinearOnAffine() {
+        // anything affine is reproduced by both, so they agree everywhere
+        val affine = SimpleColorFunc { c ->
+            Color(
+                    Bounded(0.5f * c.r.value + 0.3f * c.g.value + 0.1f * c.b.value + 0.05f),
+                    Bounded(0.2f * c.r.value + 0.6f * c.g.value + 0.2f * c.b.value),
+                    Bounded(0.9f - 0.8f * c.b.value + 0.1f * c.r.value)
+            )
+        }
+        val cube = affine.toColorCube()
+        val colors = Util.randomColors(100000)
+        val expected = affine.apply(colors).toColorData()
+        val tetrahedral = cube.apply(colors, Interpolation.TETRAHEDRAL).toColorData()
+        val trilinear = cube.apply(colors, Interpolation.TRILINEAR).toColorData()
+        assertTrue(ColorDiff.between(expected, tetrahedral).toString(),
+                expected.contentEquals(tetrahedral))
+        assertTrue(trilinear.contentEquals(tetrahedral))
+    }
+
+    @Test
+    fun accuracy() {
+        // a curved grade with some crosstalk, sampled at 17^3
+        val grade = SimpleColorFunc { c ->
+            val r = c.r.value.pow(0.6f)
+            val g = c.g.value.pow(1.8f)
+            val b = c.b.value
+            Color(
+                    Bounded(0.8f * r + 0.2f * g * b),
+                    Bounded(0.7f * g + 0.3f * r * r),
+                    Bounded(0.9f * b * b + 0.1f * r)
+            )
+        }
+        val cube = grade.toColorCube()
+        val colors = Util.randomColors(100000)
+        val expected = grade.apply(colors).toColorData()
+        val tetrahedral = ColorDiff.between(expected,
+                cube.apply(colors, Interpolation.TETRAHEDRAL).toColorData())
+        val trilinear = ColorDiff.between(expected,
+                cube.apply(colors, Interpolation.TRILINEAR).toColorData())
+
+        // both well under a U8 step on average, and tetrahedral in the same ballpark as trilinear
+        assertTrue(tetrahedral.toString(), tetrahedral.meanError < 0.5 / 255)
+        assertTrue("$tetrahedral vs $trilinear",
+                tetrahedral.maxError <= trilinear.maxError * 1.5f)
+
+        // neutrals only see the lattice points on the diagonal
+        val greys = List(1000) { Util.randomBounded().let { v -> Color(v, v, v) } }
+        val greyResults = cube.apply(greys, Interpolation.TETRAHEDRAL)
+        greys.forEachIndexed { i, grey ->
+            val x = grey.r.value * (ColorCube.N - 1)
+            val x0 = x.toInt().coerceAtMost(ColorCube.N - 2)
+            val c0 = cube.colors[x0 * (1 + ColorCube.N + ColorCube.N2)]
+            val c1 = cube.colors[(x0 + 1) * (1 + ColorCube.N + ColorCube.N2)]
+            val t = x - x0
+            assertEquals(c0.r.value + (c1.r.value - c0.r.value) * t, greyResults[i].r.value, 1e-5f)
+        }
+    }
+
+    @Test
+    fun parallelAndColorCubeApply() {
+        val cube = Util.randomColorCube()
+        val src = FloatArray(300_003) { Util.randomBounded().value }
+        val expected = FloatArray(src.size)
+        KotlinCpuTetrahedral.applyCubeToRgb(cube, src, expected)
+
+        val parallel = FloatArray(src.size)
+        KotlinCpuTetrahedral.applyCubeToRgbForkJoin(cube, src, parallel, forkJoinPool)
+        assertArrayEquals(expected, parallel, 0f)
+
+        val result = FloatArray(src.size)
+        cube.apply(src, result, Interpolation.TETRAHEDRAL)
+        assertArrayEquals(expected, result, 0f)
+
+        // a range, in place
+        val inPlace = src.copyOf()
+        cube.apply(inPlace, inPlace, Interpolation.TETRAHEDRAL, 10, 20)
+        assertArrayEquals(expected.copyOfRange(30, 60), inPlace.copyOfRange(30, 60), 0f)
+        assertArrayEquals(src.copyOfRange(0, 30), inPlace.copyOfRange(0, 30), 0f)
+
+        val color = Color(Bounded(src[0]), Bounded(src[1]), Bounded(src[2]))
+        val single = cube.apply(color, Interpolation.TETRAHEDRAL)
+        assertEquals(expected[0], single.r.value, 0f)
+        assertEquals(expected[1], single.g.value, 0f)
+        assertEquals(expected[2], single.b.value, 0f)
+    }
+
+    @Test
+    @Ignore("$TAG: timing-only tests disabled")
+    fun timing() {
+        val cube = Util.randomColorCube()
+        val src = FloatArray(3_000_000) { Util.randomBounded().value }
+        val dst = FloatArray(src.size)
+        fun time(f: () -> Unit): Long {
+            repeat(5) { f() }
+            val start = System.nanoTime()
+            repeat(20) { f() }
+            return (System.nanoTime() - start) / 1_000_000
+        }
+
+        val trilinear = time { KotlinCpuTrilinear.applyCubeToRgb(cube, src, dst) }
+        val tetrahedral = time { KotlinCpuTetrahedral.applyCubeToRgb(cube, src, dst) }
+        throw AssertionError("trilinear $trilinear ms, tetrahedral $tetrahedral ms")
+    }
+
+    companion object {
+        private const val TAG = "KotlinCpuTetrahedralTest"
+        private val forkJoinPool = ForkJoinPool(4)
+    }
+}
@@ -1,12 +1,28 @@
 package cat.the.lydia.coolalgebralydiathanks
 
+import cat.the.lydia.coolalgebralydiathanks.implementation.BackendProfile
+import cat.the.lydia.coolalgebralydiathanks.implementation.BackendRegistry
+import cat.the.lydia.coolalgebralydiathanks.implementation.CubeBackend
 import cat.the.lydia.coolalgebralydiathanks.implementation.KotlinCpuTrilinear
+import cat.the.lydia.coolalgebralydiathanks.implementation.ParallelCpuBackend
+import cat.the.lydia.coolalgebralydiathanks.implementation.SequentialCpuBackend
+import cat.the.lydia.coolalgebralydiathanks.implementation.U8LatticeTable
+import cat.the.lydia.coolalgebralydiathanks.utils.ColorDiff
+import cat.the.lydia.coolalgebralydiathanks.utils.Half
 import cat.the.lydia.coolalgebralydiathanks.utils.Util
+import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
 import org.junit.Ignore
 import org.junit.Test
+import java.io.File
 import java.lang.AssertionError
-import java.util.concurrent.Executors
+import java.util.concurrent.ForkJoinPool
+import kotlin.math.roundToInt
+import kotlin.math.sqrt
 
 class KotlinCpuTrilinearTest {
 
@@ -23,13 +39,13 @@ class KotlinCpuTrilinearTest {
                 repeat(1000000) {
                     val color = Util.randomColor()
                     val result = KotlinCpuTrilinear.applyCubeToColor(cube, color)
-                    assertEquals(result, color)
+                    assertTrue("expected $color got $result", result approxEquals color)
                 }
 
                 // check each lattice point
                 for (color in IdentityCube.colors) {
                     val result = KotlinCpuTrilinear.applyCubeToColor(cube, color)
-                    assertEquals(result, color)
+                    assertTrue("expected $color got $result", result approxEquals color)
                 }
 
                 if (secondRun) break
@@ -47,7 +63,7 @@ class KotlinCpuTrilinearTest {
         val cube = randomWellBehavedCube()
         val colors = Util.randomColors(1_000_000)
 
-        val apply = { KotlinCpuTrilinear.applyCubeToColorsInParallel(cube, colors, pool) }
+        val apply = { KotlinCpuTrilinear.applyCubeToColorsInParallel(cube, colors) }
 
         val start = System.currentTimeMillis()
         repeat(100) {
@@ -71,10 +87,691 @@ class KotlinCpuTrilinearTest {
         repeat(1000000) {
             val color = Util.randomColor()
             val result = KotlinCpuTrilinear.applyCubeToColor(cube, color)
-            assertEquals(result, colorFunc.apply(color))
+            val expected = colorFunc.apply(color)
+            assertTrue("expected $expected got $result", result approxEquals expected)
         }
     }
 
+    @Test
+    fun applyCubeToRgb_matchesReference() {
+        for (n in listOf(ColorCube.MIN_N, 3, ColorCube.N, 33, ColorCube.MAX_N)) {
+            val cube = Util.randomColorCube(n)
+            val colors = Util.randomColors(10000) + IdentityCube.colors + cube.colors
+            val src = Util.colorsToFloatArray(colors)
+            val dst = FloatArray(src.size)
+            KotlinCpuTrilinear.applyCubeToRgb(cube, src, dst)
+
+            // bit for bit, not just within epsilon
+            colors.forEachIndexed { i, color ->
+                val expected = KotlinCpuTrilinear.applyCubeToColor(cube, color)
+                assertEquals(expected.r.value, dst[i * 3], 0f)
+                assertEquals(expected.g.value, dst[i * 3 + 1], 0f)
+                assertEquals(expected.b.value, dst[i * 3 + 2], 0f)
+            }
+
+            // in place
+            KotlinCpuTrilinear.applyCubeToRgb(cube, src, src)
+            assertArrayEquals(dst, src, 0f)
+        }
+    }
+
+    @Test
+    fun applyCubeToRgb_noAllocation() {
+        val allocatedBytes = threadAllocatedBytes() ?: return
+        val cube = Util.randomColorCube()
+        val src = FloatArray(1_000_000 * 3) { Util.randomBounded().value }
+        val dst = FloatArray(src.size)
+
+        // warm up so the JIT is done with it
+        repeat(5) { KotlinCpuTrilinear.applyCubeToRgb(cube, src, dst) }
+
+        // measure the cost of measuring, then a million colors
+        val base = allocatedBytes()
+        val empty = allocatedBytes() - base
+        val before = allocatedBytes()
+        KotlinCpuTrilinear.applyCubeToRgb(cube, src, dst)
+        val allocated = allocatedBytes() - before - empty
+        assertTrue("allocated $allocated bytes", allocated < 1024)
+    }
+
+    @Test
+    fun applyCubeForkJoin() {
+        val cube = Util.randomColorCube()
+        val size = 100_003
+        val src = FloatArray(size * 3) { Util.randomBounded().value }
+        val expected = FloatArray(src.size)
+        KotlinCpuTrilinear.applyCubeToRgb(cube, src, expected)
+
+        // default split, lots of small ranges, and everything on the calling thread
+        for (threshold in listOf(null, 1000, size)) {
+            val result = FloatArray(src.size)
+            if (threshold == null) {
+                KotlinCpuTrilinear.applyCubeToRgbForkJoin(cube, src, result, forkJoinPool)
+            } else {
+                KotlinCpuTrilinear.applyCubeToRgbForkJoin(
+                        cube, src, result, forkJoinPool, threshold = threshold)
+            }
+            assertArrayEquals(expected, result, 0f)
+        }
+
+        // a range, in place
+        val inPlace = src.copyOf()
+        KotlinCpuTrilinear.applyCubeToRgbForkJoin(
+                cube, inPlace, inPlace, forkJoinPool, 5000, 60000, threshold = 777)
+        assertArrayEquals(src.copyOfRange(0, 15000), inPlace.copyOfRange(0, 15000), 0f)
+        assertArrayEquals(expected.copyOfRange(15000, 180000),
+                inPlace.copyOfRange(15000, 180000), 0f)
+        assertArrayEquals(src.copyOfRange(180000, src.size),
+                inPlace.copyOfRange(180000, src.size), 0f)
+
+        val colors = RgbFloatColorList(src)
+        val results = KotlinCpuTrilinear.applyCubeToColorsInParallel(
+                cube, colors, forkJoinPool, threshold = 1000)
+        assertEquals(size, results.size)
+        assertArrayEquals(expected, Util.colorsToFloatArray(results), 0f)
+        assertTrue(results.toColorData().contentEquals(cube.apply(colors).toColorData()))
+    }
+
+    @Test
+    fun applyPackedCube() {
+        for (n in listOf(ColorCube.MIN_N, ColorCube.N, 33)) {
+            val cube = Util.randomColorCube(n)
+            val packed = cube.toPackedColorCube()
+            assertEquals(n, packed.n)
+            assertEquals(packed, PackedColorCube(cube))
+            assertTrue(packed.toColorCube().contentEquals(Util.clampColorCubeToU8(cube)))
+
+            // every U8 grey and a bunch of random colors, with some alpha to pass through
+            val greys = IntArray(256) { Util.rgb(it, it, it) and 0x80ffffff.toInt() }
+            val src = greys + Util.randomColorInts(100_000)
+            val result = IntArray(src.size)
+            KotlinCpuTrilinear.applyPackedCubeToColorInts(packed, src, result)
+
+            // within 1 U8 step of the float cube, and the same as the float U8 cube except at ties
+            val reference = FloatArray(src.size * 3)
+            KotlinCpuTrilinear.applyCubeToRgb(cube, ColorIntData(src).toRgb(), reference)
+            val u8Reference = FloatArray(src.size * 3)
+            KotlinCpuTrilinear.applyCubeToRgb(
+                    Util.clampColorCubeToU8(cube), ColorIntData(src).toRgb(), u8Reference)
+            var u8Differences = 0
+            for (i in src.indices) {
+                assertEquals(src[i] ushr 24, result[i] ushr 24)
+                val channels = intArrayOf(
+                        Util.red(result[i]), Util.green(result[i]), Util.blue(result[i]))
+                for (ch in 0 until 3) {
+                    val expected = reference[i * 3 + ch] * 255
+                    assertEquals(expected, channels[ch].toFloat(), 1f + 0.001f)
+                    if (channels[ch] != Util.normalToU8(u8Reference[i * 3 + ch])) u8Differences++
+                }
+            }
+            assertTrue("$u8Differences", u8Differences < src.size * 3 / 1000)
+
+            val forkJoin = IntArray(src.size)
+            KotlinCpuTrilinear.applyPackedCubeToColorIntsForkJoin(
+                    packed, src, forkJoin, forkJoinPool, threshold = 1000)
+            assertArrayEquals(result, forkJoin)
+            assertArrayEquals(result, (packed * ColorIntData(src)).colorInts)
+        }
+    }
+
+    @Test
+    fun applyCubeToColorInts() {
+        for (n in listOf(ColorCube.MIN_N, 3, ColorCube.N, 18, 33, ColorCube.MAX_N)) {
+            // the edge is in the table
+            val table = U8LatticeTable.forSize(n)
+            assertTrue(table === U8LatticeTable.forSize(n))
+            assertEquals(n - 2, table.floatOrigin[255])
+            assertEquals(1f, table.floatFraction[255], 0f)
+            assertEquals(n - 2, table.fixedOrigin[255])
+            assertEquals(255, table.fixedFraction[255])
+            assertEquals(0, table.fixedOrigin[0])
+            assertEquals(0, table.fixedFraction[0])
+
+            // same as the float kernel on the same colors, rounded
+            val cube = Util.randomColorCube(n)
+            val src = IntArray(256) { Util.rgb(it, 255 - it, it / 2) } + Util.randomColorInts(10000)
+            val rgb = ColorIntData(src).toRgb()
+            KotlinCpuTrilinear.applyCubeToRgb(cube, rgb, rgb)
+            val expected = IntArray(src.size) {
+                Util.rgb(
+                        Util.normalToU8(rgb[it * 3]),
+                        Util.normalToU8(rgb[it * 3 + 1]),
+                        Util.normalToU8(rgb[it * 3 + 2])
+                )
+            }
+            val result = IntArray(src.size)
+            KotlinCpuTrilinear.applyCubeToColorInts(cube, src, result)
+            assertArrayEquals(expected, result)
+
+            val forkJoin = IntArray(src.size)
+            KotlinCpuTrilinear.applyCubeToColorIntsForkJoin(
+                    cube, src, forkJoin, forkJoinPool, threshold = 1000)
+            assertArrayEquals(expected, forkJoin)
+
+            // in place
+            cube.apply(src, src)
+            assertArrayEquals(expected, src)
+        }
+    }
+
+    @Test
+    fun applyCubeAtQuality() {
+        val smooth = SimpleColorFunc { c ->
+            Color(
+                    Bounded(c.r.value * c.r.value),
+                    Bounded(0.5f * c.g.value + 0.5f * c.b.value * c.b.value),
+                    Bounded(c.b.value * (0.5f + 0.5f * c.r.value))
+            )
+        }
+        val cubes = listOf(
+                smooth.toColorCube(),
+                smooth.toColorCube().resample(33),
+                Util.randomColorCube(),
+                Util.randomColorCube(5)
+        )
+        val src = FloatArray(30000) { Util.randomBounded().value } +
+                Util.colorsToFloatArray(IdentityCube.colors)
+        for (cube in cubes) {
+            val exact = FloatArray(src.size)
+            cube.apply(src, exact, Quality.EXACT)
+            assertArrayEquals(FloatArray(src.size).also { cube.apply(src, it) }, exact, 0f)
+            assertEquals(0f, cube.errorBound(Quality.EXACT), 0f)
+
+            for (quality in listOf(Quality.DOWNSAMPLED, Quality.NEAREST)) {
+                val result = FloatArray(src.size)
+                cube.apply(src, result, quality)
+                val bound = cube.errorBound(quality)
+                assertArrayEquals("$quality", exact, result, bound + 1e-5f)
+            }
+        }
+
+        // nearest is a lattice point, and exact at lattice points
+        val cube = cubes[2]
+        val nearest = FloatArray(src.size)
+        KotlinCpuTrilinear.applyCubeToRgbNearest(cube, src, nearest)
+        for (i in 0 until src.size / 3) {
+            val x = (src[i * 3] * 16).roundToInt()
+            val y = (src[i * 3 + 1] * 16).roundToInt()
+            val z = (src[i * 3 + 2] * 16).roundToInt()
+            val p = x + y * ColorCube.N + z * ColorCube.N2
+            assertEquals(cube.colors[p].r.value, nearest[i * 3], 0f)
+            assertEquals(cube.colors[p].g.value, nearest[i * 3 + 1], 0f)
+            assertEquals(cube.colors[p].b.value, nearest[i * 3 + 2], 0f)
+        }
+        val lattice = Util.colorsToFloatArray(IdentityCube.colors)
+        KotlinCpuTrilinear.applyCubeToRgbNearestForkJoin(
+                cube, lattice, lattice, forkJoinPool, threshold = 100)
+        assertArrayEquals(cube.values, lattice, 0f)
+
+        // the smooth cube downsamples well, and identity doesn't lose anything
+        assertTrue(cubes[0].errorBound(Quality.DOWNSAMPLED) < 0.01f)
+        assertTrue(cubes[0].errorBound(Quality.NEAREST) < 0.2f)
+        assertEquals(0f, ColorCube.identity(33).errorBound(Quality.DOWNSAMPLED), 1e-5f)
+        assertEquals(0f, cubes[3].errorBound(Quality.DOWNSAMPLED), 0f)
+
+        // other ColorFuncs go through their cube
+        val colors = Util.randomColors(1000)
+        assertTrue(smooth.apply(colors, Quality.NEAREST).toColorData()
+                .contentEquals(cubes[0].apply(colors, Quality.NEAREST).toColorData()))
+    }
+
+    @Test
+    fun applyCubeToRgbNearest_outOfRange() {
+        // out of range channels read the nearest edge of the cube, like the trilinear kernel
+        val cube = Util.randomColorCube(5)
+        val src = floatArrayOf(
+                -0.3f, 0.5f, 1.2f,
+                1.2f, -0.3f, 0.5f,
+                0.5f, 1.2f, -0.3f,
+                -5f, 5f, 0.99f
+        )
+        val expected = floatArrayOf(
+                0f, 0.5f, 1f,
+                1f, 0f, 0.5f,
+                0.5f, 1f, 0f,
+                0f, 1f, 1f
+        )
+        val reference = FloatArray(src.size)
+        KotlinCpuTrilinear.applyCubeToRgbNearest(cube, expected, reference)
+        val nearest = FloatArray(src.size)
+        KotlinCpuTrilinear.applyCubeToRgbNearest(cube, src, nearest)
+        assertArrayEquals(reference, nearest, 0f)
+        val forkJoin = FloatArray(src.size)
+        KotlinCpuTrilinear.applyCubeToRgbNearestForkJoin(
+                cube, src, forkJoin, forkJoinPool, threshold = 1)
+        assertArrayEquals(reference, forkJoin, 0f)
+    }
+
+    @Test
+    @Ignore("$TAG: timing-only tests disabled")
+    fun applyCubeAtQuality_timing() {
+        val cube = Util.randomColorCube(33)
+        val src = FloatArray(3_000_000) { Util.randomBounded().value }
+        val dst = FloatArray(src.size)
+        fun time(quality: Quality): Long {
+            repeat(5) { cube.apply(src, dst, quality) }
+            val start = System.nanoTime()
+            repeat(20) { cube.apply(src, dst, quality) }
+            return (System.nanoTime() - start) / 1_000_000
+        }
+        throw AssertionError(Quality.values().joinToString { "$it ${time(it)} ms" })
+    }
+
+    @Test
+    fun applyShapedCube() {
+        // a contrast curve on gamma-encoded values, applied to linear values like log footage
+        val encode = { v: Float -> sqrt(v) }
+        val contrast = { v: Float -> v * v * (3 - 2 * v) }
+        val grade = SimpleColorFunc { c ->
+            val r = encode(c.r.value)
+            val g = encode(c.g.value)
+            val b = encode(c.b.value)
+            Color(
+                    Bounded(contrast(0.8f * r + 0.2f * g)),
+                    Bounded(contrast(g)),
+                    Bounded(contrast(0.9f * b + 0.1f * r))
+            )
+        }
+        val shaped = ShapedColorCube.bake(grade, encode)
+        assertEquals(ColorCube.N, shaped.cube.n)
+
+        val colors = Util.randomColors(20000) +
+                List(1000) { Util.randomColor().let { c -> Color(
+                        Bounded(c.r.value / 100), Bounded(c.g.value / 100), Bounded(c.b.value / 100))
+                } }
+        val expected = grade.apply(colors).toColorData()
+        val shapedError = ColorDiff.between(expected, shaped.apply(colors).toColorData())
+        val plain17 = ColorDiff.between(expected, grade.toColorCube().apply(colors).toColorData())
+        val plain65 = ColorDiff.between(expected,
+                grade.applyToLattice(ColorCube.identity(65)).apply(colors).toColorData())
+
+        // 17^3 behind a shaper beats 65^3 without one
+        assertTrue("$shapedError vs $plain65", shapedError.maxError < plain65.maxError)
+        assertTrue("$shapedError vs $plain17", shapedError.maxError < plain17.maxError / 4)
+
+        // one fused pass is the same as shaping and then applying the cube
+        val src = Util.colorsToFloatArray(colors)
+        val fused = FloatArray(src.size)
+        KotlinCpuTrilinear.applyShapedCubeToRgb(shaped, src, fused)
+        val twoPass = FloatArray(src.size) { i ->
+            val curve = when (i % 3) {
+                0 -> shaped.red
+                1 -> shaped.green
+                else -> shaped.blue
+            }
+            val x = (curve.size - 1) * src[i]
+            val x0 = x.toInt().coerceAtMost(curve.size - 2)
+            curve[x0] + (curve[x0 + 1] - curve[x0]) * (x - x0)
+        }
+        KotlinCpuTrilinear.applyCubeToRgb(shaped.cube, twoPass, twoPass)
+        assertArrayEquals(twoPass, fused, 1e-6f)
+
+        val forkJoin = FloatArray(src.size)
+        KotlinCpuTrilinear.applyShapedCubeToRgbForkJoin(
+                shaped, src, forkJoin, forkJoinPool, threshold = 1000)
+        assertArrayEquals(fused, forkJoin, 0f)
+        assertEquals(fused[0], shaped.apply(colors[0]).r.value, 0f)
+
+        // composing on the left keeps the shaper and the accuracy
+        val invert = SimpleColorFunc { c ->
+            Color(Bounded(1 - c.r.value), Bounded(1 - c.g.value), Bounded(1 - c.b.value))
+        }
+        val inverted: ShapedColorCube = invert * shaped
+        val invertedExpected = invert.apply(grade.apply(colors)).toColorData()
+        val invertedError =
+                ColorDiff.between(invertedExpected, inverted.apply(colors).toColorData())
+        assertEquals(shapedError.maxError, invertedError.maxError, 1e-4f)
+
+        // and on the right with compose()
+        val half = SimpleColorFunc { c ->
+            Color(Bounded(c.r.value / 2), Bounded(c.g.value / 2), Bounded(c.b.value / 2))
+        }
+        val composed = shaped.compose(half)
+        val composedExpected = grade.apply(half.apply(colors)).toColorData()
+        val composedError =
+                ColorDiff.between(composedExpected, composed.apply(colors).toColorData())
+        assertTrue("$composedError", composedError.maxError < plain65.maxError)
+
+        // as a plain cube it's sampled at the 17^3 identity lattice like any other ColorFunc
+        val plain = shaped.toColorCube()
+        assertEquals(ColorCube.N, plain.n)
+        assertTrue(plain.contentEquals(shaped.apply(IdentityCube.colors).toColorData()))
+    }
+
+    @Test
+    fun applyCubeToPlanar() {
+        for (n in listOf(ColorCube.MIN_N, 5, ColorCube.N, 33)) {
+            val cube = Util.randomColorCube(n)
+            val colors = Util.randomColors(10000) + IdentityCube.colors
+            val planar = colors.toColorData().toPlanarColorData()
+
+            // same bits as the interleaved kernel
+            val src = Util.colorsToFloatArray(colors)
+            val expected = FloatArray(src.size)
+            KotlinCpuTrilinear.applyCubeToRgb(cube, src, expected)
+            val result = PlanarColorData(planar.size)
+            val actual = FloatArray(src.size)
+            KotlinCpuTrilinear.applyCubeToPlanar(cube, planar, result)
+            result.copyRgbInto(actual)
+            assertArrayEquals(expected, actual, 0f)
+
+            val parallel = PlanarColorData(planar.size)
+            KotlinCpuTrilinear.applyCubeToPlanarForkJoin(cube, planar, parallel, forkJoinPool)
+            parallel.copyRgbInto(actual)
+            assertArrayEquals(expected, actual, 0f)
+            (cube * planar).copyRgbInto(actual)
+            assertArrayEquals(expected, actual, 0f)
+        }
+    }
+
+    @Test
+    fun applyCubeToBuffer() {
+        val cube = Util.randomColorCube()
+        val size = 100_003
+        val src = FloatArray(size * 3) { Util.randomBounded().value }
+        val expected = FloatArray(src.size)
+        KotlinCpuTrilinear.applyCubeToRgb(cube, src, expected)
+
+        val buffer = BufferColorData.allocateDirect(size, BufferColorData.PixelFormat.RGB_F32)
+        buffer.copyRgbFrom(src)
+        val dst = BufferColorData.allocateDirect(size, BufferColorData.PixelFormat.RGB_F32)
+        val result = FloatArray(src.size)
+
+        KotlinCpuTrilinear.applyCubeToBuffer(cube, buffer, dst, chunkSize = 1000)
+        dst.copyRgbInto(result)
+        assertArrayEquals(expected, result, 0f)
+
+        KotlinCpuTrilinear.applyCubeToBufferForkJoin(
+                cube, buffer, dst, forkJoinPool, chunkSize = 1000)
+        dst.copyRgbInto(result)
+        assertArrayEquals(expected, result, 0f)
+
+        // in place
+        cube.apply(buffer, buffer)
+        buffer.copyRgbInto(result)
+        assertArrayEquals(expected, result, 0f)
+    }
+
+    @Test
+    fun applyHalfCube() {
+        for (n in listOf(ColorCube.MIN_N, ColorCube.N, 33)) {
+            val cube = Util.randomColorCube(n)
+            val half = cube.toHalfColorCube()
+            assertEquals(n, half.n)
+            assertEquals(half, HalfColorCube(cube))
+            assertTrue(half.toColorCube().contentEquals(half))
+
+            // interpolating halves in float is within the half rounding of the float cube
+            val src = FloatArray(30000) { Util.randomBounded().value }
+            val expected = FloatArray(src.size)
+            val result = FloatArray(src.size)
+            KotlinCpuTrilinear.applyCubeToRgb(cube, src, expected)
+            KotlinCpuTrilinear.applyHalfCubeToRgb(half, src, result)
+            assertArrayEquals(expected, result, Half.MAX_UNIT_ERROR + Bounded.BOUNDED_EPS)
+
+            // and exactly the float kernel on the cube the halves expand to
+            val expanded = FloatArray(src.size)
+            KotlinCpuTrilinear.applyCubeToRgb(half.toColorCube(), src, expanded)
+            assertArrayEquals(expanded, result, 0f)
+
+            val parallel = FloatArray(src.size)
+            KotlinCpuTrilinear.applyHalfCubeToRgbForkJoin(half, src, parallel, forkJoinPool)
+            assertArrayEquals(result, parallel, 0f)
+
+            val color = Util.randomColor()
+            assertEquals(cube.apply(color).r.value, half.apply(color).r.value,
+                    Half.MAX_UNIT_ERROR + Bounded.BOUNDED_EPS)
+        }
+    }
+
+    @Test
+    fun composeHalfCubes() {
+        val cubes = List(8) { randomWellBehavedCube() }
+
+        // compose in float, and again storing every intermediate result as halves
+        var expected = IdentityCube as ColorCube
+        var half = IdentityCube.toHalfColorCube()
+        for (cube in cubes) {
+            expected = cube * expected
+            half = (cube.toHalfColorCube() * half).toHalfColorCube()
+        }
+
+        // each step adds at most two roundings, the cube and the stored result
+        val bound = cubes.size * 2 * Half.MAX_UNIT_ERROR + Bounded.BOUNDED_EPS
+        val fs = FloatArray(expected.values.size)
+        half.copyRgbInto(fs)
+        assertArrayEquals(expected.values, fs, bound)
+
+        // which is small enough that U8 results only differ for values right at a rounding edge
+        val u8Differences = fs.indices.count {
+            Util.normalToU8(expected.values[it]) != Util.normalToU8(fs[it])
+        }
+        assertTrue(u8Differences < fs.size / 100)
+    }
+
+    @Test
+    fun applyCubeToRgb_cellMajor() {
+        for (n in listOf(ColorCube.MIN_N, 3, ColorCube.N, 33, ColorCube.MAX_N)) {
+            val cube = Util.randomColorCube(n)
+            val src = Util.colorsToFloatArray(
+                    Util.randomColors(10000) + IdentityCube.colors + cube.colors)
+            val fromLattice = FloatArray(src.size)
+            val fromCells = FloatArray(src.size)
+            val count = src.size / 3
+            KotlinCpuTrilinear.applyCubeToRgb(cube, src, fromLattice, 0, count, null)
+            KotlinCpuTrilinear.applyCubeToRgb(
+                    cube, src, fromCells, 0, count, KotlinCpuTrilinear.toCellMajor(cube))
+            assertArrayEquals(fromLattice, fromCells, 0f)
+        }
+
+        // only kept when asked for, and freed again after
+        val cube = Util.randomColorCube()
+        val src = FloatArray(cube.size * 8 * 3) { Util.randomBounded().value }
+        val expected = FloatArray(src.size)
+        cube.apply(src, expected, Precision.EXACT)
+        assertFalse(cube.cellMajor)
+        assertNull(KotlinCpuTrilinear.cellValues(cube))
+
+        cube.cellMajor = true
+        assertNotNull(KotlinCpuTrilinear.cellValues(cube))
+        val result = FloatArray(src.size)
+        cube.apply(src, result, Precision.EXACT)
+        assertArrayEquals(expected, result, 0f)
+
+        cube.cellMajor = false
+        assertNull(KotlinCpuTrilinear.cellValues(cube))
+    }
+
+    @Test
+    @Ignore("$TAG: timing-only tests disabled")
+    fun applyCubeToRgb_cellMajor_timing() {
+        // scattered colors hit cells all over the lattice, a smooth gradient mostly the same ones
+        val scattered = FloatArray(3_000_000) { Util.randomBounded().value }
+        val smooth = FloatArray(scattered.size) { (it / 3) / 1_000_000f }
+        val results = listOf(ColorCube.N, 33, ColorCube.MAX_N).flatMap { n ->
+            val cube = Util.randomColorCube(n)
+            listOf("scattered" to scattered, "smooth" to smooth).map { (name, src) ->
+                val dst = FloatArray(src.size)
+                val cells = KotlinCpuTrilinear.toCellMajor(cube)
+                fun time(cellMajor: Boolean): Long {
+                    val apply = {
+                        KotlinCpuTrilinear.applyCubeToRgb(cube, src, dst, 0, 1_000_000,
+                                if (cellMajor) cells else null)
+                    }
+                    repeat(5) { apply() }
+                    val start = System.nanoTime()
+                    repeat(20) { apply() }
+                    return (System.nanoTime() - start) / 1_000_000
+                }
+                "n=$n $name lattice ${time(false)} ms cells ${time(true)} ms"
+            }
+        }
+        throw AssertionError(results.joinToString())
+    }
+
+    @Test
+    fun applyPolynomialCube() {
+        for (n in listOf(ColorCube.MIN_N, 3, ColorCube.N, 33)) {
+            val cube = Util.randomColorCube(n)
+            val polynomial = cube.toPolynomialColorCube()
+            assertEquals((n - 1) * (n - 1) * (n - 1) * 24, polynomial.coefficients.size)
+
+            // including every lattice point and the edges, where we use the cell below
+            val colors = Util.randomColors(10000) + IdentityCube.colors + cube.colors
+            val src = Util.colorsToFloatArray(colors)
+            val expected = FloatArray(src.size)
+            val actual = FloatArray(src.size)
+            KotlinCpuTrilinear.applyCubeToRgb(cube, src, expected)
+            KotlinCpuTrilinear.applyPolynomialCubeToRgb(polynomial, src, actual)
+            assertArrayEquals(expected, actual, Bounded.BOUNDED_EPS)
+
+            val forkJoin = FloatArray(src.size)
+            KotlinCpuTrilinear.applyPolynomialCubeToRgbForkJoin(
+                    polynomial, src, forkJoin, forkJoinPool, threshold = 1000)
+            assertArrayEquals(actual, forkJoin, 0f)
+        }
+        val cube = Util.randomColorCube()
+        assertEquals(cube, cube.toPolynomialColorCube().toColorCube())
+        val color = Util.randomColor()
+        assertTrue(cube.apply(color) approxEquals cube.toPolynomialColorCube().apply(color))
+    }
+
+    @Test
+    @Ignore("$TAG: timing-only tests disabled")
+    fun applyPolynomialCube_timing() {
+        val results = listOf(ColorCube.N, 33, ColorCube.MAX_N).map { n ->
+            val cube = Util.randomColorCube(n)
+            val polynomial = cube.toPolynomialColorCube()
+            val src = FloatArray(3_000_000) { Util.randomBounded().value }
+            val dst = FloatArray(src.size)
+            fun time(apply: () -> Unit): Long {
+                repeat(5) { apply() }
+                val start = System.nanoTime()
+                repeat(20) { apply() }
+                return (System.nanoTime() - start) / 1_000_000
+            }
+            val plain = time { KotlinCpuTrilinear.applyCubeToRgb(cube, src, dst) }
+            val compiled =
+                    time { KotlinCpuTrilinear.applyPolynomialCubeToRgb(polynomial, src, dst) }
+            "n=$n plain $plain ms polynomial $compiled ms"
+        }
+        throw AssertionError(results.joinToString())
+    }
+
+    @Test
+    fun composedColorFunc() {
+        val gain = SimpleColorFunc { c ->
+            Color(Bounded(c.r.value * 0.9f), c.g, Bounded(c.b.value * 0.8f + 0.2f))
+        }
+        val swap = U8ColorFunc(SimpleColorFunc { c -> Color(c.g, c.b, c.r) })
+        val stages = listOf(Util.randomColorCube(), gain, swap, Util.randomColorCube(33), gain)
+        val look = ComposedColorFunc(stages[0], stages[1], pool = forkJoinPool) then
+                IdentityCube then
+                ComposedColorFunc(stages[2], stages[3]) then
+                stages[4]
+        assertEquals(stages, look.stages)
+
+        // same results as applying the stages one at a time, bit for bit
+        val photo = Util.randomPhoto(300, 200)
+        var expected = photo
+        for (stage in stages) expected = stage * expected
+        val actual = look * photo
+        val expectedRgb = expected.toRgb()
+        assertArrayEquals(expectedRgb, actual.toRgb(), 0f)
+        val color = Util.randomColor()
+        assertEquals(stages.fold(color) { c, f -> f.apply(c) }, look.apply(color))
+
+        // in place, on part of the input
+        val values = photo.toRgb()
+        look.apply(values, values, 100, 5000)
+        assertArrayEquals(expectedRgb.copyOfRange(300, 15000), values.copyOfRange(300, 15000), 0f)
+        assertArrayEquals(photo.toRgb().copyOf(300), values.copyOf(300), 0f)
+
+        // baking is there when asked for, and gives what baking the stages one at a time does
+        var baked = IdentityCube as ColorCube
+        for (stage in stages) baked = stage * baked
+        assertArrayEquals(baked.values, look.bake().values, Bounded.BOUNDED_EPS)
+        assertTrue(ComposedColorFunc().isIdentity())
+    }
+
+    @Test
+    fun backendRegistry() {
+        val relaxed = FakeBackend("fake", Precision.RELAXED)
+        val registry = BackendRegistry(
+                listOf(SequentialCpuBackend, ParallelCpuBackend, relaxed),
+                BackendProfile(mapOf("cpu" to 0, "cpu-parallel" to 100, "fake" to 1000))
+        )
+
+        // routed by size
+        assertEquals(SequentialCpuBackend, registry.select(0))
+        assertEquals(SequentialCpuBackend, registry.select(99))
+        assertEquals(ParallelCpuBackend, registry.select(100))
+        assertEquals(relaxed, registry.select(1000))
+        assertTrue(registry.useParallelCpu(100))
+
+        // and never to a relaxed backend when we need exact results
+        assertEquals(ParallelCpuBackend, registry.select(1000, Precision.EXACT))
+
+        // or to one that isn't available
+        relaxed.available = false
+        assertEquals(ParallelCpuBackend, registry.select(1000))
+
+        // every exact backend gives the reference results
+        val cube = Util.randomColorCube()
+        val src = FloatArray(3000) { Util.randomBounded().value }
+        val expected = FloatArray(src.size)
+        KotlinCpuTrilinear.applyCubeToRgb(cube, src, expected, 0, 1000)
+        for (size in listOf(10, 100, 1000)) {
+            val dst = FloatArray(src.size)
+            registry.apply(cube, src, dst, 0, size, Precision.EXACT)
+            assertArrayEquals(expected.copyOf(size * 3), dst.copyOf(size * 3), 0f)
+        }
+        val colors = Util.randomColors(500)
+        assertEquals(colors.map(cube::apply), registry.apply(cube, colors, Precision.EXACT))
+
+        // unknown backends are never preferred until they have a profile entry
+        val late = FakeBackend("late", Precision.EXACT)
+        registry.register(late)
+        assertEquals(ParallelCpuBackend, registry.select(Int.MAX_VALUE - 1))
+    }
+
+    @Test
+    fun backendCalibration() {
+        val registry = BackendRegistry(listOf(SequentialCpuBackend, ParallelCpuBackend))
+        val profile = registry.calibrate(listOf(64, 4096, 65536), IdentityCube)
+        assertEquals(profile, registry.profile)
+        assertEquals(0, profile.minSize("cpu"))
+        val parallel = profile.minSize("cpu-parallel")
+        assertTrue(parallel == Int.MAX_VALUE || parallel in listOf(64, 4096, 65536))
+        // the device backend wasn't available, so it keeps its default
+        assertEquals(BackendProfile.DEFAULT.minSize("renderscript"),
+                profile.minSize("renderscript"))
+
+        val file = File.createTempFile("backends", ".properties")
+        try {
+            profile.save(file)
+            assertEquals(profile, BackendProfile.load(file))
+            val other = BackendRegistry(listOf(SequentialCpuBackend, ParallelCpuBackend))
+            assertEquals(profile, other.calibrateOrLoad(file))
+            assertEquals(profile, other.profile)
+        } finally {
+            file.delete()
+        }
+    }
+
+    /**
+     * Stands in for a device backend. Same results as the CPU, but claims less precision.
+     */
+    private class FakeBackend(override val name: String, override val precision: Precision)
+        : CubeBackend {
+        var available = true
+        override fun isAvailable(): Boolean = available
+        override fun apply(cube: ColorCube, src: FloatArray, dst: FloatArray, from: Int, to: Int) =
+                KotlinCpuTrilinear.applyCubeToRgb(cube, src, dst, from, to)
+    }
+
+    private fun ColorData.toRgb(): FloatArray = FloatArray(size * 3).also { copyRgbInto(it) }
+
     companion object {
         private const val TAG = "CpuInterpolateTest"
         private fun randomWellBehavedCube(): ColorCube {
@@ -89,7 +786,26 @@ class KotlinCpuTrilinearTest {
             return colorFunc.toColorCube()
         }
 
-        private val pool = Executors.newFixedThreadPool(9)
+        private val forkJoinPool = ForkJoinPool(4)
+
+        /**
+         * Bytes allocated so far by this thread, if the JVM can tell us. Found reflectively since
+         * java.lang.management isn't on Android.
+         */
+        private fun threadAllocatedBytes(): (() -> Long)? = try {
+            val bean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean")
+                    .invoke(null)
+            val method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", Long::class.javaPrimitiveType)
+            val id = Thread.currentThread().id
+            if ((method.invoke(bean, id) as Long) < 0) null
+            else {
+                { method.invoke(bean, id) as Long }
+            }
+        } catch (e: Exception) {
+            null
+        }
 
     }
 }
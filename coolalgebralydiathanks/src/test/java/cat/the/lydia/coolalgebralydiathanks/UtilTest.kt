@@ -1,10 +1,22 @@
 package cat.the.lydia.coolalgebralydiathanks
 
+import cat.the.lydia.coolalgebralydiathanks.implementation.KotlinCpuTrilinear
+import cat.the.lydia.coolalgebralydiathanks.utils.ColorDiff
+import cat.the.lydia.coolalgebralydiathanks.utils.CompositionCache
+import cat.the.lydia.coolalgebralydiathanks.utils.Fingerprint
+import cat.the.lydia.coolalgebralydiathanks.utils.Half
 import cat.the.lydia.coolalgebralydiathanks.utils.Util
 import org.junit.Assert.*
+import org.junit.Ignore
 import org.junit.Test
+import java.io.File
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.math.abs
 import kotlin.math.roundToInt
+import kotlin.math.sqrt
+import kotlin.random.Random
 
 class UtilTest {
     @Test
@@ -20,6 +32,16 @@ class UtilTest {
         assertEquals(expected, packed)
     }
 
+    @Test
+    fun copyColorDataAsPackedRsColors() {
+        val translucent = IntArray(100) { Util.randomColorInt() and 0x7fffffff }
+        for (data in listOf(ColorIntData(translucent), Util.randomPhoto(10, 10))) {
+            val buffer = IntArray(data.size)
+            Util.copyColorDataAsPackedRsColors(data, buffer)
+            assertArrayEquals(data.colors.map(Util::packColor8888).toIntArray(), buffer)
+        }
+    }
+
     @Test
     fun boundedToU8() {
         assertEquals(0, Util.boundedToU8(Bounded(0f)))
@@ -113,6 +135,251 @@ class UtilTest {
         assertEquals(ColorCube.N_COLORS, c.colors.size)
     }
 
+    @Test
+    fun copyColorCubeIntoFloatArray() {
+        val c = Util.randomColorCube()
+        val fs = FloatArray(ColorCube.N_VALUES_RGB)
+        Util.copyColorCubeIntoFloatArray(c, fs)
+
+        c.colors.forEachIndexed { n, color ->
+            assertEquals(color.r.value, fs[n * 3], 0f)
+            assertEquals(color.g.value, fs[n * 3 + 1], 0f)
+            assertEquals(color.b.value, fs[n * 3 + 2], 0f)
+        }
+        assertEquals(c, ColorCube.fromFloatArray(fs))
+    }
+
+    @Test
+    fun resampleColorCube() {
+        assertEquals(ColorCube.identity(33), ColorCube.identity.resample(33))
+        assertEquals(ColorCube.identity(2), ColorCube.identity(65).resample(2))
+
+        // upsampling by a whole factor is exact, and downsampling back gets the original
+        val c = Util.randomColorCube()
+        val up = c.resample(33)
+        assertEquals(33, up.n)
+        assertEquals(33 * 33 * 33, up.size)
+        assertTrue(c.contentEquals(up.resample(ColorCube.N)))
+
+        val colors = Util.randomColors(1000)
+        assertTrue(c.apply(colors).toColorData().contentEquals(up.apply(colors).toColorData()))
+
+        // mixed sizes compose at the size of the right cube
+        val small = Util.randomColorCube(5)
+        assertEquals(ColorCube.N, (small * c).n)
+        assertEquals(5, (c * small).n)
+        assertTrue((small * c).contentEquals((small * up).resample(ColorCube.N)))
+    }
+
+    @Test
+    fun cubeStructure() {
+        val random = Random(SEED)
+        fun randomColor() = Color(
+                Bounded(random.nextFloat()),
+                Bounded(random.nextFloat()),
+                Bounded(random.nextFloat())
+        )
+        assertTrue(ColorCube.identity(33).structure is CubeStructure.Affine)
+        assertTrue(ColorCube(List(ColorCube.N_COLORS) { randomColor() }).structure ===
+                CubeStructure.General)
+
+        // greyscale and channel mixing are affine
+        val grey = SimpleColorFunc { c ->
+            val y = 0.2126f * c.r.value + 0.7152f * c.g.value + 0.0722f * c.b.value
+            Color(Bounded(y), Bounded(y), Bounded(y))
+        }.toColorCube()
+        val affine = listOf(grey, randomWellBehavedCube(random))
+
+        // per-channel curves are separable
+        val curves = SimpleColorFunc { c ->
+            Color(
+                    Bounded(c.r.value * c.r.value),
+                    Bounded(sqrt(c.g.value)),
+                    Bounded(1 - c.b.value)
+            )
+        }.applyToLattice(ColorCube.identity(5))
+        val separable = listOf(curves, curves.resample(33))
+
+        val colors = List(10000) { randomColor() }
+        val src = Util.colorsToFloatArray(colors)
+        for (cube in affine + separable) {
+            if (cube in affine) assertTrue(cube.structure is CubeStructure.Affine)
+            else assertTrue(cube.structure.toString(), cube.structure is CubeStructure.Separable)
+            assertSame(cube.structure, cube.structure)
+
+            // within the Bounded epsilon of the 3D lookup, which snaps nearly equal lerps
+            val expected = FloatArray(src.size)
+            KotlinCpuTrilinear.applyCubeToRgb(cube, src, expected)
+            val result = FloatArray(src.size)
+            cube.apply(src, result)
+            assertArrayEquals(expected, result, Bounded.BOUNDED_EPS)
+            assertTrue(cube.apply(colors).toColorData().contentEquals(RgbFloatData(expected)))
+
+            val direct = FloatArray(src.size)
+            (cube.structure as CubeStructure.Direct).apply(src, direct, 0, colors.size)
+            assertArrayEquals(result, direct, 0f)
+        }
+
+        // a lattice value off by more than the tolerance makes it general again
+        val values = grey.values.copyOf()
+        values[values.size / 2] += CubeStructure.TOLERANCE * 4
+        assertTrue(CubeStructure.of(ColorCube(values, grey.n)) === CubeStructure.General)
+    }
+
+    @Test
+    fun planarColorData() {
+        val data = Util.randomPhoto(100, 10)
+        val planar = data.toPlanarColorData()
+        assertEquals(data.size, planar.size)
+        assertTrue(planar.contentEquals(data))
+        assertEquals(data.colors, planar.colors)
+
+        val colorInts = IntArray(data.size)
+        planar.copyColorIntsInto(colorInts)
+        val expected = IntArray(data.size)
+        data.copyColorIntsInto(expected)
+        assertArrayEquals(expected, colorInts)
+
+        val clamped = Util.clampPlanarToU8(planar)
+        assertTrue(clamped.colors.all(Color::isU8Color))
+        assertTrue(clamped.contentEquals(Util.clampColorsToU8(data.colors).toColorData()))
+
+        val other = Util.randomPhoto(100, 10).toPlanarColorData()
+        val scale = Util.randomBounded()
+        val lerp = Util.linearInterpolate(planar, other, scale)
+        assertTrue(lerp.contentEquals(
+                Util.linearInterpolate(planar.colors, other.colors, scale).toColorData()))
+        assertSame(planar, Util.linearInterpolate(planar, other, Bounded.zero))
+    }
+
+    @Test
+    fun half() {
+        assertEquals(0f, Half.toFloat(Half.fromFloat(0f)), 0f)
+        assertEquals(1f, Half.toFloat(Half.fromFloat(1f)), 0f)
+        assertEquals(0x3c00.toShort(), Half.fromFloat(1f))
+        assertEquals(65504f, Half.toFloat(Half.fromFloat(65504f)), 0f)
+        assertEquals(Float.POSITIVE_INFINITY, Half.toFloat(Half.fromFloat(1e6f)), 0f)
+        assertTrue(Half.toFloat(Half.fromFloat(Float.NaN)).isNaN())
+        assertEquals(-0.5f, Half.toFloat(Half.fromFloat(-0.5f)), 0f)
+
+        // every half converts back to itself
+        for (h in 0 until 0x7c00) {
+            assertEquals(h.toShort(), Half.fromFloat(Half.toFloat(h.toShort())))
+        }
+
+        // and floats in [0,1] round to within half a step, 2^-12 at most
+        repeat(100000) {
+            val f = Util.randomBounded().value
+            assertEquals(f, Half.toFloat(Half.fromFloat(f)), Half.MAX_UNIT_ERROR)
+        }
+        for (u8 in 0..255) {
+            assertEquals(u8, Util.normalToU8(Half.toFloat(Half.fromFloat(Util.u8ToNormal(u8)))))
+        }
+    }
+
+    @Test
+    fun halfPhoto() {
+        val p = Util.randomPhoto(100, 10)
+        val half = p.toHalfPhoto()
+        assertEquals(p.width, half.width)
+        assertTrue(half.data is HalfFloatData)
+
+        val fs = FloatArray(p.size * 3)
+        val halfFs = FloatArray(p.size * 3)
+        p.copyRgbInto(fs)
+        half.copyRgbInto(halfFs)
+        assertArrayEquals(fs, halfFs, Half.MAX_UNIT_ERROR)
+        assertEquals(half.colors, HalfFloatData(Half.toHalfArray(fs)).colors)
+
+        val u8 = Util.randomU8Photo(100, 10)
+        val colorInts = IntArray(u8.size)
+        val expected = IntArray(u8.size)
+        u8.toHalfPhoto().copyColorIntsInto(colorInts)
+        u8.copyColorIntsInto(expected)
+        assertArrayEquals(expected, colorInts)
+    }
+
+    @Test
+    fun photoRegion() {
+        val p = Util.randomU8Photo(40, 30)
+        assertSame(p, p.region(0, 0, 40, 30))
+
+        val r = p.region(5, 7, 10, 12)
+        assertEquals(10, r.width)
+        assertEquals(12, r.height)
+        assertEquals(120, r.size)
+        val expected = (0 until 12).flatMap { y ->
+            (0 until 10).map { x -> p.colors[(y + 7) * 40 + x + 5] }
+        }
+        assertEquals(expected, r.colors)
+        assertEquals(Photo(expected, 10, 12), r)
+
+        // regions of regions point at the original
+        val rr = r.region(2, 3, 4, 5)
+        assertEquals(p.region(7, 10, 4, 5), rr)
+        assertSame(p.data, (rr.data as PhotoRegion).source)
+
+        // bulk copies that start and end mid-row
+        val fs = FloatArray(50 * 3)
+        r.copyRgbInto(fs, 0, 15, 50)
+        assertEquals(Photo(expected, 10, 12).colors.subList(15, 65), RgbFloatData(fs).colors)
+        val colorInts = IntArray(50)
+        r.copyColorIntsInto(colorInts, 0, 15, 50)
+        val expectedInts = expected.subList(15, 65).map(Util::colorToColorInt).toIntArray()
+        assertArrayEquals(expectedInts, colorInts)
+
+        val cube = Util.randomColorCube()
+        assertTrue((cube * r).contentEquals(cube * Photo(expected, 10, 12)))
+        assertTrue((cube * r).contentEquals((cube * p).region(5, 7, 10, 12)))
+
+        try {
+            p.region(35, 0, 10, 10)
+            fail("expected IllegalArgumentException")
+        } catch (e: IllegalArgumentException) {
+        }
+    }
+
+    @Test
+    fun bufferColorData() {
+        val p = Util.randomPhoto(50, 20)
+        val fs = FloatArray(p.size * 3)
+        p.copyRgbInto(fs)
+
+        for (format in BufferColorData.PixelFormat.values()) {
+            val data = BufferColorData.allocateDirect(p.size, format)
+            assertEquals(p.size, data.size)
+            data.copyRgbFrom(fs)
+            val expected = if (format == BufferColorData.PixelFormat.RGB_F32) p
+            else Photo(ColorIntData(IntArray(p.size).also { p.copyColorIntsInto(it) }), 50, 20)
+            assertEquals(expected, Photo(data, 50, 20))
+            assertEquals(expected.colors, data.colors)
+
+            val colorInts = IntArray(10)
+            val expectedInts = IntArray(10)
+            data.copyColorIntsInto(colorInts, 0, 333, 10)
+            expected.copyColorIntsInto(expectedInts, 0, 333, 10)
+            assertArrayEquals(expectedInts, colorInts)
+        }
+    }
+
+    @Test
+    fun mappedBufferColorData() {
+        val file = File.createTempFile("pixels", ".raw")
+        try {
+            val p = Util.randomU8Photo(64, 64)
+            val out = BufferColorData.map(file, BufferColorData.PixelFormat.ARGB_8888, p.size)
+            val fs = FloatArray(p.size * 3)
+            p.copyRgbInto(fs)
+            out.copyRgbFrom(fs)
+            assertEquals(p.size * 4L, file.length())
+
+            val mapped = BufferColorData.map(file, BufferColorData.PixelFormat.ARGB_8888)
+            assertEquals(p, Photo(mapped, 64, 64))
+        } finally {
+            file.delete()
+        }
+    }
+
     @Test
     fun boundedToU8Bounded() {
         val bounded = Util.randomBounded()
@@ -135,6 +402,41 @@ class UtilTest {
         assertEquals(u8Color, u8Color.clampToU8Color())
     }
 
+    @Test
+    fun boundedApproxEquals() {
+        val a = Util.randomBounded()
+        val b = Bounded((a.value + Bounded.BOUNDED_EPS / 2).coerceAtMost(1f))
+        assertTrue(a approxEquals b)
+        assertTrue(Color(a, a, a) approxEquals Color(b, b, b))
+        assertFalse(Bounded(0f) approxEquals Bounded(0.5f))
+
+        assertEquals(a.quantize(), Bounded(a.value).quantize())
+        assertEquals(Color(a, b, a).hashCode(), Color(a, b, a).hashCode())
+
+        // within epsilon but either side of a quantization step: approxEquals, but not ==
+        val below = Color(Bounded(0.00004f), Bounded.zero, Bounded.zero)
+        val above = Color(Bounded(0.00006f), Bounded.zero, Bounded.zero)
+        assertTrue(below approxEquals above)
+        assertFalse(below == above)
+
+        // == agrees with hashCode, so Colors work as hash keys
+        val near = Color(Bounded(0.00001f), Bounded.zero, Bounded.zero)
+        assertEquals(below, near)
+        assertEquals(below.hashCode(), near.hashCode())
+        assertTrue(near in hashSetOf(below))
+    }
+
+    @Test
+    fun boundedChecked() {
+        assertFalse(Bounded(1.5f).isValid)
+        assertEquals(Bounded(0.5f), Bounded.checked(0.5f))
+        try {
+            Bounded.checked(-0.5f)
+            fail("expected IllegalArgumentException")
+        } catch (e: IllegalArgumentException) {
+        }
+    }
+
     @Test
     fun isU8Bounded() {
         for (n in 0 until 100) {
@@ -158,6 +460,92 @@ class UtilTest {
         assertFalse(Util.sameColorData(c0, c1))
     }
 
+    @Test
+    fun colorDiff() {
+        val p = Util.randomPhoto(300, 200)
+        val same = ColorDiff.between(p, p.toPlanarColorData())
+        assertTrue(same.isSame)
+        assertEquals(0f, same.maxError, 0f)
+        assertEquals(Double.POSITIVE_INFINITY, same.psnr, 0.0)
+
+        // change one value by a known amount, far enough in to be past the first chunk
+        val fs = FloatArray(p.size * 3)
+        p.copyRgbInto(fs)
+        val index = 45_678
+        fs[index * 3 + 1] = if (fs[index * 3 + 1] > 0.5f) fs[index * 3 + 1] - 0.25f
+        else fs[index * 3 + 1] + 0.25f
+        fs[(index + 1000) * 3] = fs[(index + 1000) * 3] + Bounded.BOUNDED_EPS / 2
+        val changed = RgbFloatData(fs)
+
+        val diff = ColorDiff.between(p, changed)
+        assertFalse(diff.isSame)
+        assertEquals(index, diff.firstDifference)
+        assertEquals(0.25f, diff.maxError, 1e-6f)
+        assertEquals(0.25 / (p.size * 3), diff.meanError, 1e-6)
+        assertEquals(10 * Math.log10(p.size * 3 / 0.0625), diff.psnr, 0.01)
+        assertFalse(ColorDiff.same(p, changed))
+        assertFalse(p.contentEquals(changed))
+        assertTrue(ColorDiff.same(p, changed, epsilon = 0.3f))
+
+        val cube = Util.randomColorCube()
+        assertTrue(ColorDiff.same(cube, cube.toPlanarColorData()))
+        assertTrue(ColorDiff.between(cube, Util.randomColorCube()).psnr < 20.0)
+    }
+
+    @Test
+    fun compositionCache() {
+        val (a, b, c) = List(3) { Util.randomColorCube() }
+        val entryBytes = 3L * a.values.size * 4
+        val cache = CompositionCache(maxBytes = entryBytes * 2)
+        // compose runs outside the cache's lock, so this is counted from several threads below
+        val composed = AtomicInteger()
+        fun compose(left: ColorCube, right: ColorCube) = cache.getOrCompose(left, right) {
+            composed.incrementAndGet()
+            left.applyToLattice(right)
+        }
+
+        val ab = compose(a, b)
+        // equal content is enough, and order matters
+        assertSame(ab, compose(ColorCube(a.values.copyOf(), a.n), b))
+        assertNotSame(ab, compose(b, a))
+        assertEquals(2, composed.get())
+        assertEquals(1, cache.hits)
+        assertEquals(2, cache.misses)
+        assertEquals(entryBytes * 2, cache.bytes)
+
+        // a * b was used last, so b * a is the one to go
+        compose(a, b)
+        compose(a, c)
+        assertEquals(2, cache.size)
+        assertEquals(1, cache.evictions)
+        compose(a, b)
+        compose(b, a)
+        assertEquals(4, composed.get())
+
+        // a single entry over budget is never stored
+        val tiny = CompositionCache(maxBytes = entryBytes - 1)
+        tiny.getOrCompose(a, b) { ab }
+        assertEquals(0, tiny.size)
+
+        // shared between threads
+        val pool = Executors.newFixedThreadPool(8)
+        val results = try {
+            List(64) {
+                pool.submit(Callable { compose(a, if (it % 2 == 0) b else c) })
+            }.map { it.get() }
+        } finally {
+            pool.shutdown()
+        }
+        assertTrue(results.all { it == a * b || it == a * c })
+        assertTrue(cache.bytes <= cache.maxBytes)
+
+        // and ColorCube * ColorCube goes through the default cache
+        val before = CompositionCache.default.hits
+        val first = c * b
+        assertSame(first, c * b)
+        assertEquals(before + 1, CompositionCache.default.hits)
+    }
+
     @Test
     fun photo() {
         val p = Util.randomPhoto(100, 100)
@@ -165,6 +553,57 @@ class UtilTest {
         assertNotEquals(p, Util.randomColorCube() * p)
     }
 
+    @Test
+    fun primitivePhotos() {
+        val colorInts = Util.randomColorInts(100 * 100)
+        val p0 = Photo(ColorIntData(colorInts), 100, 100)
+        val p1 = Photo(colorInts.map(Util::colorIntToColor), 100, 100)
+        assertEquals(p0, p1)
+
+        val fs = FloatArray(p0.size * 3)
+        p0.copyRgbInto(fs)
+        val p2 = Photo(RgbFloatData(fs), 100, 100)
+        assertEquals(p0, p2)
+
+        val result = IntArray(p2.size)
+        p2.copyColorIntsInto(result)
+        assertTrue(colorInts.contentEquals(result))
+
+        val cube = randomWellBehavedCube()
+        assertEquals(Photo(cube.apply(p1.colors), 100, 100), cube * p0)
+    }
+
+    @Test
+    fun fingerprint() {
+        val c0 = Util.randomColorCube()
+        val c1 = ColorCube(c0.colors)
+        val c2 = Util.randomColorCube()
+        assertEquals(c0.fingerprint, c1.fingerprint)
+        assertNotEquals(c0.fingerprint, c2.fingerprint)
+        assertEquals(c0.hashCode(), c1.hashCode())
+        assertEquals(Fingerprint.of(c0), c0.fingerprint)
+        assertTrue(c0.quantizedEquals(c1))
+        assertFalse(c0.quantizedEquals(c2))
+
+        val cubes = hashMapOf(c0.fingerprint to "c0", c2.fingerprint to "c2")
+        assertEquals("c0", cubes[c1.fingerprint])
+
+        // equals() keeps the epsilon comparison, so values that straddle a quantization step are
+        // still equal, but not quantizedEquals()
+        val straddle = ColorCube(FloatArray(c0.values.size) { 0.00004f }, c0.n)
+        val other = ColorCube(FloatArray(c0.values.size) { 0.00006f }, c0.n)
+        assertEquals(straddle, other)
+        assertFalse(straddle.quantizedEquals(other))
+
+        val p0 = Util.randomU8Photo(100, 100)
+        val p1 = Photo(p0.colors, 100, 100)
+        assertEquals(p0.fingerprint, p1.fingerprint)
+        assertEquals(p0, p1)
+        assertTrue(p0.quantizedEquals(p1))
+        assertNotEquals(p0.fingerprint, Photo(p0.data, 50, 200).fingerprint)
+        assertFalse(p0.quantizedEquals(Photo(p0.data, 50, 200)))
+    }
+
     @Test
     fun lridentity() {
         val id = ColorCube(IdentityCube.colors)
@@ -174,8 +613,12 @@ class UtilTest {
         assertEquals(c0, c1)
     }
 
-    fun randomWellBehavedCube(): ColorCube {
-        val off = Util.randomColor()
+    fun randomWellBehavedCube(random: Random = Random): ColorCube {
+        val off = Color(
+                Bounded(random.nextFloat()),
+                Bounded(random.nextFloat()),
+                Bounded(random.nextFloat())
+        )
         val colorFunc = SimpleColorFunc { c ->
             Color(
                     Bounded(c.r.value * off.r.value),
@@ -231,7 +674,127 @@ class UtilTest {
         assertEquals(p0, p1)
     }
 
+    @Test
+    fun composeAll() {
+        val pool = Executors.newFixedThreadPool(4)
+        try {
+            val mappend = { a: ColorCube, acc: ColorCube -> a * acc }
+            assertEquals(IdentityCube, ColorCube.composeAll(emptyList(), pool))
+
+            // linear within a cell, so the tree and the fold agree
+            for (k in listOf(1, 2, 5, 16)) {
+                val cs = List(k) { randomWellBehavedCube() }
+                val tree = ColorCube.composeAll(cs, pool)
+                assertTrue(tree.contentEquals(cs.foldRight(IdentityCube, mappend)))
+            }
+
+            // 17 gentle curves and mixes, where the tree and the fold interpolate in different
+            // places. Seeded, since the error bounds below depend on the curves.
+            val random = Random(SEED)
+            val funcs = List(17) {
+                val curve = 0.1f * random.nextFloat()
+                val mix = 0.2f * random.nextFloat()
+                SimpleColorFunc { c ->
+                    val (r, g, b) = listOf(c.r.value, c.g.value, c.b.value)
+                    Color(
+                            Bounded((1 - curve) * r + curve * r * r),
+                            Bounded((1 - mix) * g + mix * b),
+                            Bounded((1 - curve) * b + curve * b * b * (3 - 2 * b))
+                    )
+                }
+            }
+            val cs = funcs.mapIndexed { i, f ->
+                f.applyToLattice(ColorCube.identity(if (i == funcs.lastIndex) 33 else ColorCube.N))
+            }
+            val tree = ColorCube.composeAll(cs, pool)
+            val fold = cs.foldRight(IdentityCube, mappend)
+            assertEquals(33, tree.n)
+
+            // Neither is exact. The tree interpolates products of several curves, so it's a bit
+            // further off the real chain than the fold, but only by a couple of U8 steps at worst.
+            val exact = ComposedColorFunc(*funcs.asReversed().toTypedArray())
+                    .applyToLattice(ColorCube.identity(33))
+            val treeError = ColorDiff.between(exact, tree)
+            val foldError = ColorDiff.between(exact, fold)
+            assertTrue("$treeError", treeError.maxError < 3f / 255)
+            assertTrue("$treeError", treeError.meanError < 1.0 / 255)
+            assertTrue("$foldError", foldError.maxError < 1f / 255)
+            assertTrue(ColorDiff.between(fold, tree).maxError < 3f / 255)
+        } finally {
+            pool.shutdown()
+        }
+    }
+
+    @Test
+    fun editStack() {
+        val random = Random(SEED)
+        val mappend = { a: ColorCube, acc: ColorCube -> a * acc }
+        val layers = MutableList(16) { randomWellBehavedCube(random) }
+        val stack = EditStack(layers)
+        assertEquals(15, stack.compositions)
+        assertEquals(layers, stack.layers)
+        assertTrue(stack.product.contentEquals(layers.foldRight(IdentityCube, mappend)))
+
+        // one layer at a time, log2(16) compositions each
+        repeat(20) {
+            val i = random.nextInt(layers.size)
+            val before = stack.compositions
+            layers[i] = randomWellBehavedCube(random)
+            stack[i] = layers[i]
+            assertEquals(4, stack.compositions - before)
+            assertEquals(layers[i], stack[i])
+        }
+        assertTrue(stack.product.contentEquals(layers.foldRight(IdentityCube, mappend)))
+
+        // inserts and removes stay balanced, so they're O(log k) amortized too
+        val before = stack.compositions
+        repeat(200) {
+            if (layers.size < 8 || (layers.size < 24 && random.nextBoolean())) {
+                val i = random.nextInt(layers.size + 1)
+                val cube = randomWellBehavedCube(random)
+                layers.add(i, cube)
+                stack.add(i, cube)
+            } else {
+                val i = random.nextInt(layers.size)
+                assertEquals(layers.removeAt(i), stack.removeAt(i))
+            }
+        }
+        assertTrue("${stack.compositions - before}", stack.compositions - before < 200 * 12)
+        assertEquals(layers, stack.layers)
+        assertTrue(stack.product.contentEquals(layers.foldRight(IdentityCube, mappend)))
+
+        // down to nothing and back
+        while (stack.size > 0) stack.removeAt(0)
+        assertEquals(IdentityCube, stack.product)
+        val cube = randomWellBehavedCube(random)
+        stack.add(cube)
+        assertEquals(cube, stack.product)
+    }
+
+    @Test
+    @Ignore("$TAG: timing-only tests disabled")
+    fun editStack_timing() {
+        val layers = MutableList(16) { Util.randomColorCube() }
+        val stack = EditStack(layers)
+        val mappend = { a: ColorCube, acc: ColorCube -> a * acc }
+        val ticks = 100
+        fun time(tick: (Int, ColorCube) -> Unit): Long {
+            val start = System.nanoTime()
+            repeat(ticks) { tick(it % layers.size, Util.randomColorCube()) }
+            return (System.nanoTime() - start) / 1_000_000
+        }
+        val fold = time { i, cube ->
+            layers[i] = cube
+            layers.foldRight(IdentityCube, mappend)
+        }
+        val edit = time { i, cube -> stack[i] = cube }
+        throw AssertionError("$ticks ticks on 16 layers: fold $fold ms, EditStack $edit ms")
+    }
+
     companion object {
+        private const val TAG = "UtilTest"
+        private const val SEED = 2020
+
         private const val BLACK = -0x1000000
         private const val DKGRAY = -0xbbbbbc
         private const val GRAY = -0x777778
@@ -48,7 +48,7 @@ open class Lut3dRsRenderer(val cubeDim: Int) : RsRenderer {
 
     @Synchronized
     fun setLutData(rgbFloatLut: FloatArray) {
-        require(rgbFloatLut.size == N_VALUES_RGB)
+        require(rgbFloatLut.size == this.rgbFloatLut.size)
 
         if (!rgbFloatLut.contentEquals(this.rgbFloatLut)) {
             rgbFloatLut.copyInto(this.rgbFloatLut)